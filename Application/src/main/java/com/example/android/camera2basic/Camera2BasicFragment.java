@@ -35,6 +35,7 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
@@ -42,10 +43,10 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.DialogFragment;
@@ -62,14 +63,9 @@ import android.view.ViewGroup;
 import android.widget.SeekBar;
 import android.widget.Toast;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileFilter;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -77,6 +73,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -103,29 +104,11 @@ public class Camera2BasicFragment extends Fragment
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Camera state: Showing camera preview.
+     * Name of the {@link android.content.SharedPreferences} file the address of the last
+     * lightstage is kept in.
      */
-    private static final int STATE_PREVIEW = 0;
-
-    /**
-     * Camera state: Waiting for the focus to be locked.
-     */
-    private static final int STATE_WAITING_LOCK = 1;
-
-    /**
-     * Camera state: Waiting for the exposure to be precapture state.
-     */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
-
-    /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
-     */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
-
-    /**
-     * Camera state: Picture was taken.
-     */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final String LIGHTSTAGE_PREFERENCES_NAME = "lightstage";
+    private static final String KEY_LAST_LIGHTSTAGE_ADDRESS = "last_address";
 
     /**
      * Max preview width that is guaranteed by Camera2 API
@@ -239,9 +222,246 @@ public class Camera2BasicFragment extends Fragment
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * An {@link ImageReader} for the RAW_SENSOR version of the stills when
+     * {@link CaptureConfig#rawMode} is enabled, {@code null} otherwise.
+     */
+    private ImageReader mRawImageReader;
+
+    /**
+     * Accounts for the images of {@link #mImageReader}. In ZSL mode it only accounts for the
+     * picked frames that are being saved; the ring buffer bounds the others.
+     */
+    private ImageQueue mImageQueue;
+
+    /**
+     * Accounts for the images of {@link #mRawImageReader}.
+     */
+    private ImageQueue mRawImageQueue;
+
+    /**
+     * The characteristics of the current camera, needed to write DNGs.
+     */
+    private CameraCharacteristics mCharacteristics;
+
+    /**
+     * The frames of the requested stills whose RAW image hasn't been delivered by
+     * {@link #mRawImageReader} yet, in submission order.
+     */
+    private final BlockingQueue<LightstageShot.Frame> mPendingRawFrames =
+            new LinkedBlockingQueue<>();
+
+    /**
+     * The pool writing the DNGs, so the camera callback thread never blocks on them.
+     */
+    private SaverExecutor mDngWriterPool;
+
+    /**
+     * The threads saving the JPEG and YUV images, so disk writes never delay the capture results
+     * delivered on {@link #mBackgroundHandler}.
+     */
+    private SaverExecutor mImageSaverPool;
+
+    /**
+     * Syncs the saved frames according to {@link CaptureConfig#durability}.
+     */
+    private GroupCommitter mGroupCommitter;
+
+    /**
+     * A RAW image together with the shot frame it belongs to.
+     */
+    private static final class RawFrame {
+
+        final Image image;
+        final AutoCloseable handle;
+        final LightstageShot.Frame frame;
+
+        RawFrame(Image image, AutoCloseable handle, LightstageShot.Frame frame) {
+            this.image = image;
+            this.handle = handle;
+            this.frame = frame;
+        }
+
+    }
+
+    /**
+     * Pairs every RAW image with the {@link TotalCaptureResult} of its still request and hands
+     * them to {@link #mDngWriterPool}.
+     */
+    private final TimestampMatcher<RawFrame, TotalCaptureResult> mRawMatcher =
+            new TimestampMatcher<>(new TimestampMatcher.Listener<RawFrame, TotalCaptureResult>() {
+
+                @Override
+                public void onMatched(long timestampNs, RawFrame raw,
+                                      TotalCaptureResult result) {
+                    submitSave(mDngWriterPool, new DngSaver(mCharacteristics, result,
+                            raw.image, raw.handle, raw.frame, mImageSaverCallback),
+                            raw.handle, raw.frame);
+                }
+
+                @Override
+                public void onFirstDropped(long timestampNs, RawFrame raw) {
+                    Log.e(TAG, "RAW image without a capture result - dropping "
+                            + raw.frame.file.getName());
+                    closeQuietly(raw.handle);
+                    raw.frame.shot.onFrameWritten(raw.frame, null, 0,
+                            new IOException("no capture result for the RAW image"),
+                            mImageSaverCallback);
+                }
+
+            });
+
+    /**
+     * Receives the RAW images from {@link #mRawImageReader}.
+     */
+    private final ImageReader.OnImageAvailableListener mOnRawImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            AutoCloseable handle = mRawImageQueue.onImageAcquired(image);
+            LightstageShot.Frame frame = mPendingRawFrames.poll();
+            if (null == frame) {
+                Log.e(TAG, "RAW image without a pending output file - dropping it");
+                closeQuietly(handle);
+                return;
+            }
+            mRawMatcher.offerFirst(image.getTimestamp(), new RawFrame(image, handle, frame));
+        }
+
+    };
+
+    /**
+     * The capture result log of the current session when {@link CaptureConfig#metadataLog} is
+     * enabled, {@code null} otherwise.
+     */
+    private volatile CaptureMetadataLog mMetadataLog;
+
+    /**
+     * The record every still result is copied into before it is logged; only used on the camera
+     * callback thread.
+     */
+    private final CaptureMetadataLog.Record mMetadataRecord = new CaptureMetadataLog.Record();
+
+    /**
+     * The frames of the still captures whose result or failure hasn't arrived yet, in submission
+     * order. The camera reports both in the order of the requests, so the head is the frame of
+     * the next {@link #onStillCaptureCompleted} or {@link #onStillCaptureFailed}.
+     */
+    private final BlockingQueue<LightstageShot.Frame> mCapturingFrames =
+            new LinkedBlockingQueue<>();
+
+    /**
+     * Appends the key fields of the still result of {@code frame} to {@link #mMetadataLog}, if
+     * it is open.
+     */
+    private void logCaptureResult(LightstageShot.Frame frame, TotalCaptureResult result) {
+        CaptureMetadataLog log = mMetadataLog;
+        if (null == log || null == frame) {
+            return;
+        }
+        CaptureMetadataLog.Record record = mMetadataRecord;
+        record.clear();
+        record.shot = frame.shot.index;
+        record.bracket = frame.bracket;
+        record.frameNumber = result.getFrameNumber();
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null != timestamp) {
+            record.timestampNs = timestamp;
+        }
+        Long requestedExposure = result.getRequest().get(CaptureRequest.SENSOR_EXPOSURE_TIME);
+        if (null != requestedExposure) {
+            record.requestedExposureNs = requestedExposure;
+        }
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (null != exposure) {
+            record.exposureNs = exposure;
+        }
+        Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        if (null != frameDuration) {
+            record.frameDurationNs = frameDuration;
+        }
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (null != sensitivity) {
+            record.sensitivity = sensitivity;
+        }
+        Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        if (null != focusDistance) {
+            record.focusDistance = focusDistance;
+        }
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        if (null != aperture) {
+            record.aperture = aperture;
+        }
+        Integer lensState = result.get(CaptureResult.LENS_STATE);
+        if (null != lensState) {
+            record.lensState = lensState;
+        }
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        if (null != afState) {
+            record.afState = afState;
+        }
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        if (null != aeState) {
+            record.aeState = aeState;
+        }
+        try {
+            log.append(record);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void openMetadataLog() {
+        closeMetadataLog();
+        if (!mCaptureConfig.metadataLog) {
+            return;
+        }
+        try {
+            mMetadataLog = new CaptureMetadataLog(getActivity().getExternalFilesDir(null),
+                    pictureSession);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeMetadataLog() {
+        CaptureMetadataLog log = mMetadataLog;
+        mMetadataLog = null;
+        if (null != log) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Logs the results of the stills and hands the results of RAW stills to
+     * {@link #mRawMatcher}.
+     */
+    private void onStillCaptureCompleted(TotalCaptureResult result) {
+        logCaptureResult(mCapturingFrames.poll(), result);
+        LightstageController controller = mLightstageController;
+        if (null != controller) {
+            // the still may have freed the camera for the next shot
+            controller.updateCredits();
+        }
+        if (null == mRawImageReader) {
+            return;
+        }
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null != timestamp) {
+            mRawMatcher.offerSecond(timestamp, result);
+        }
+    }
+
+    /**
+     * The frames of the still captures that have been requested but not yet delivered by
+     * {@link #mImageReader}, in submission order.
      */
-    private File mFile;
+    private final BlockingQueue<LightstageShot.Frame> mPendingFrames = new LinkedBlockingQueue<>();
 
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
@@ -252,7 +472,150 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            Image image = reader.acquireNextImage();
+            if (null != mZslBuffer) {
+                mZslBuffer.offer(image);
+                return;
+            }
+            AutoCloseable handle = mImageQueue.onImageAcquired(image);
+            LightstageShot.Frame frame = mPendingFrames.poll();
+            if (null == frame) {
+                Log.e(TAG, "image without a pending output file - dropping it");
+                closeQuietly(handle);
+                return;
+            }
+            frame.imageAvailableNs = mCaptureEngine.getTimings().imageAvailable();
+            journalCaptured(frame);
+            submitSave(mImageSaverPool, newImageSaver(image, handle, frame), handle, frame);
+        }
+
+    };
+
+    /**
+     * Returns the saver writing {@code image} into the file of {@code frame}: a JPEG is written
+     * as it is, a YUV image is dumped plane by plane.
+     *
+     * @param handle Closes {@code image} once it is saved
+     */
+    private Runnable newImageSaver(Image image, AutoCloseable handle, LightstageShot.Frame frame) {
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            return YuvSaver.forImage(image, handle, frame, mCaptureEngine.getTimings(),
+                    mImageSaverCallback);
+        }
+        return new ImageSaver(handle, image.getPlanes()[0].getBuffer(), frame,
+                mCaptureEngine.getTimings(), mImageSaverCallback);
+    }
+
+    /**
+     * Hands {@code saver} to {@code pool}. If the pool's queue is full the image is dropped and
+     * its frame fails, rather than the camera thread waiting for the disk.
+     */
+    private void submitSave(ExecutorService pool, Runnable saver, AutoCloseable image,
+                            LightstageShot.Frame frame) {
+        try {
+            pool.execute(saver);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "saver queue full - dropping " + frame.file.getName());
+            closeQuietly(image);
+            frame.shot.onFrameWritten(frame, null, 0, new IOException("saver queue full", e),
+                    mImageSaverCallback);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable image) {
+        try {
+            image.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reserves room for {@code images} more images in {@code queue}, so the stills of a shot are
+     * only submitted once their images can be acquired. This never waits: the controller only
+     * hands over a shot once {@link LightstageController.Listener#shotCredits()} says it fits,
+     * and holds back the lightstage while the savers are behind.
+     *
+     * @throws IOException if the queue has no room, i.e. the lightstage exceeded its credit, or
+     *                     the shot has more images than the reader can hold at all
+     */
+    private static void reserveImageQueue(ImageQueue queue, int images)
+            throws IOException, InterruptedException {
+        if (null == queue) {
+            return;
+        }
+        if (images > queue.capacity()) {
+            throw new IOException(images + " brackets don't fit into an image queue of "
+                    + queue.capacity());
+        }
+        if (!queue.awaitCapacity(images, 0)) {
+            throw new IOException("image queue full: " + queue.acquired()
+                    + " images not saved yet");
+        }
+    }
+
+    /**
+     * Returns how many shots of {@code brackets} images fit into {@code queue} right now.
+     */
+    private static int shotsThatFit(ImageQueue queue, int brackets) {
+        return null != queue ? queue.shotsThatFit(brackets) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Fails the frame of a still whose image will never be delivered: it no longer waits for its
+     * image, its reservation is returned and the lightstage is told through
+     * {@link #mImageSaverCallback}.
+     */
+    private void onStillCaptureFailed(CaptureFailure failure) {
+        LightstageShot.Frame frame = mCapturingFrames.poll();
+        if (failure.wasImageCaptured()) {
+            // the image still arrives and is saved, there is just no result to log
+            return;
+        }
+        if (null != mImageQueue) {
+            mImageQueue.cancel(1);
+        }
+        if (null != mRawImageQueue) {
+            mRawImageQueue.cancel(1);
+        }
+        if (null == frame) {
+            return;
+        }
+        mPendingFrames.remove(frame);
+        mPendingRawFrames.remove(frame);
+        frame.shot.onCaptureFailed(frame, new IOException("capture failed: reason "
+                + failure.getReason()), mImageSaverCallback);
+        LightstageController controller = mLightstageController;
+        if (null != controller) {
+            controller.updateCredits();
+        }
+    }
+
+    /**
+     * The buffer of streamed full resolution frames when {@link CaptureConfig#zslMode} is enabled,
+     * {@code null} otherwise.
+     */
+    private ZslRingBuffer<Image> mZslBuffer;
+
+    /**
+     * Whether the sensor timestamps of the current camera are in the
+     * {@link SystemClock#elapsedRealtimeNanos()} timebase.
+     */
+    private boolean mSensorTimestampRealtime;
+
+    /**
+     * Gives {@link #mZslBuffer} access to the timestamps of the streamed {@link Image}s.
+     */
+    private static final ZslRingBuffer.Frames<Image> ZSL_IMAGES = new ZslRingBuffer.Frames<Image>() {
+
+        @Override
+        public long timestampOf(Image frame) {
+            return frame.getTimestamp();
+        }
+
+        @Override
+        public void release(Image frame) {
+            frame.close();
         }
 
     };
@@ -268,11 +631,39 @@ public class Camera2BasicFragment extends Fragment
     private CaptureRequest mPreviewRequest;
 
     /**
-     * The current state of camera state for taking pictures.
+     * The settings of the capture pipeline, read in {@link #onResume()}.
+     */
+    private CaptureConfig mCaptureConfig = new CaptureConfig();
+
+    /**
+     * The prepared still requests that are submitted together for every lightstage shot when
+     * {@link CaptureConfig#burstMode} is enabled.
      *
-     * @see #mCaptureCallback
+     * @see #prepareStillBurst()
+     */
+    private volatile List<CaptureRequest> mStillBurst;
+
+    /**
+     * The state machine for taking pictures, fed by {@link #mCaptureCallback}.
      */
-    private int mState = STATE_PREVIEW;
+    private final CaptureEngine mCaptureEngine = new CaptureEngine(new CaptureEngine.Listener() {
+
+        @Override
+        public void onRunPrecapture() {
+            runPrecaptureSequence();
+        }
+
+        @Override
+        public void onCaptureStill() {
+            captureStillPicture();
+        }
+
+        @Override
+        public void onFocusLocked() {
+            onSessionFocusLocked();
+        }
+
+    }, new CaptureTimings(CaptureTimings.SYSTEM_CLOCK));
 
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
@@ -296,52 +687,11 @@ public class Camera2BasicFragment extends Fragment
             = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
-
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    Log.d(TAG, "focus range: " + result.get(CaptureResult.LENS_FOCUS_RANGE) );
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
+            if (mCaptureEngine.getState() == CaptureEngine.STATE_WAITING_NON_PRECAPTURE) {
+                Log.d(TAG, "focus range: " + result.get(CaptureResult.LENS_FOCUS_RANGE) );
             }
+            mCaptureEngine.onResult(result.get(CaptureResult.CONTROL_AF_STATE),
+                    result.get(CaptureResult.CONTROL_AE_STATE));
         }
 
         @Override
@@ -455,7 +805,15 @@ public class Camera2BasicFragment extends Fragment
     @Override
     public void onResume() {
         super.onResume();
+        mCaptureConfig = CaptureConfig.fromPreferences(getActivity().getSharedPreferences(
+                CaptureConfig.PREFERENCES_NAME, Context.MODE_PRIVATE));
         startBackgroundThread();
+        mImageSaverPool = new SaverExecutor("ImageSaver", mCaptureConfig.saverThreads,
+                mCaptureConfig.saverQueueCapacity);
+        mDngWriterPool = new SaverExecutor("DngSaver", mCaptureConfig.dngWriterThreads,
+                mCaptureConfig.saverQueueCapacity);
+        mGroupCommitter = new GroupCommitter(mCaptureConfig.durability,
+                mCaptureConfig.groupCommitFrames, mCaptureConfig.groupCommitIntervalMs);
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
         // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
@@ -472,6 +830,18 @@ public class Camera2BasicFragment extends Fragment
     public void onPause() {
         closeCamera();
         stopBackgroundThread();
+        mImageSaverPool.shutdown();
+        mDngWriterPool.shutdown();
+        mGroupCommitter.close();
+        closeSessionPack();
+        LightstageController controller = mLightstageController;
+        if (null != controller) {
+            controller.stop();
+        }
+        closeJournal(false);
+        closeManifest();
+        closeMetadataLog();
+        stopFrameStreamer(false);
         super.onPause();
     }
 
@@ -524,13 +894,50 @@ public class Camera2BasicFragment extends Fragment
                 }
 
                 // For still image captures, we use the largest available size.
+                int stillFormat = mCaptureConfig.yuvMode
+                        ? ImageFormat.YUV_420_888 : ImageFormat.JPEG;
                 Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
+                        Arrays.asList(map.getOutputSizes(stillFormat)),
                         new CompareSizesByArea());
+                // A shot reserves all of its brackets at once, so the readers hold at least the
+                // configured ladder. In ZSL mode the reader holds the whole ring buffer, the
+                // picked frames being saved and the frame streaming in, which is acquired before
+                // the oldest buffered one is released.
+                int stillImages = Math.max(mCaptureConfig.imageQueueDepth,
+                        mCaptureConfig.exposureLadder.length);
+                int maxImages = mCaptureConfig.zslMode
+                        ? mCaptureConfig.imageQueueDepth + mCaptureConfig.zslBufferDepth + 1
+                        : stillImages;
                 mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
+                        stillFormat, maxImages);
+                mImageQueue = new ImageQueue(mCaptureConfig.zslMode
+                        ? mCaptureConfig.imageQueueDepth : stillImages);
                 mImageReader.setOnImageAvailableListener(
                         mOnImageAvailableListener, mBackgroundHandler);
+                mZslBuffer = mCaptureConfig.zslMode
+                        ? new ZslRingBuffer<>(ZSL_IMAGES, mCaptureConfig.zslBufferDepth)
+                        : null;
+                mCharacteristics = characteristics;
+
+                if (mCaptureConfig.rawMode && !mCaptureConfig.zslMode
+                        && hasCapability(characteristics,
+                        CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW)) {
+                    Size largestRaw = Collections.max(
+                            Arrays.asList(map.getOutputSizes(ImageFormat.RAW_SENSOR)),
+                            new CompareSizesByArea());
+                    mRawImageReader = ImageReader.newInstance(largestRaw.getWidth(),
+                            largestRaw.getHeight(), ImageFormat.RAW_SENSOR, stillImages);
+                    mRawImageQueue = new ImageQueue(stillImages);
+                    mRawImageReader.setOnImageAvailableListener(
+                            mOnRawImageAvailableListener, mBackgroundHandler);
+                } else if (mCaptureConfig.rawMode) {
+                    Log.w(TAG, "RAW mode needs the RAW capability and no ZSL mode - disabled");
+                }
+
+                Integer timestampSource =
+                        characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mSensorTimestampRealtime = timestampSource != null && timestampSource
+                        == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
 
                 // Find out if we need to swap dimension to get the preview size relative to sensor
                 // coordinate.
@@ -611,6 +1018,23 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Returns whether the camera lists {@code capability} in its available capabilities.
+     */
+    private static boolean hasCapability(CameraCharacteristics characteristics, int capability) {
+        int[] capabilities =
+                characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) {
+            return false;
+        }
+        for (int c : capabilities) {
+            if (c == capability) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}.
      */
@@ -646,6 +1070,12 @@ public class Camera2BasicFragment extends Fragment
                 mCaptureSession.close();
                 mCaptureSession = null;
             }
+            mStillRequestCache.clear();
+            mStillBurst = null;
+            if (null != mZslBuffer) {
+                mZslBuffer.clear();
+                mZslBuffer = null;
+            }
             if (null != mCameraDevice) {
                 mCameraDevice.close();
                 mCameraDevice = null;
@@ -654,6 +1084,23 @@ public class Camera2BasicFragment extends Fragment
                 mImageReader.close();
                 mImageReader = null;
             }
+            for (RawFrame raw : mRawMatcher.clear()) {
+                closeQuietly(raw.handle);
+            }
+            if (null != mImageQueue) {
+                mImageQueue.clear();
+                mImageQueue = null;
+            }
+            if (null != mRawImageQueue) {
+                mRawImageQueue.clear();
+                mRawImageQueue = null;
+            }
+            mPendingRawFrames.clear();
+            mCapturingFrames.clear();
+            if (null != mRawImageReader) {
+                mRawImageReader.close();
+                mRawImageReader = null;
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -698,13 +1145,25 @@ public class Camera2BasicFragment extends Fragment
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder
-                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            // We set up a CaptureRequest.Builder with the output Surface. In ZSL mode the
+            // repeating request also streams full resolution frames into mImageReader.
+            if (null != mZslBuffer) {
+                mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(
+                        CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+                mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
+            } else {
+                mPreviewRequestBuilder
+                        = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            }
             mPreviewRequestBuilder.addTarget(surface);
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface,
+                    mImageReader.getSurface()));
+            if (null != mRawImageReader) {
+                outputs.add(mRawImageReader.getSurface());
+            }
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -737,6 +1196,12 @@ public class Camera2BasicFragment extends Fragment
                                 // setAutoFlash(mPreviewRequestBuilder);
                                 // setFlashOff(mPreviewRequestBuilder);
 
+                                // The streamed ZSL frames are the lightstage pictures, so they
+                                // need the still settings.
+                                if (null != mZslBuffer) {
+                                    setZslStillSettings(mPreviewRequestBuilder);
+                                }
+
                                 // Finally, we start displaying the camera preview.
                                 mPreviewRequest = mPreviewRequestBuilder.build();
                                 mCaptureSession.setRepeatingRequest(mPreviewRequest,
@@ -811,28 +1276,12 @@ public class Camera2BasicFragment extends Fragment
                 // This is how to tell the camera to lock focus.
                 //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, //null);
                 //         CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
-                mState = STATE_WAITING_NON_PRECAPTURE;// STATE_WAITING_PRECAPTURE;
+                mCaptureEngine.waitForExposure();
             }
             else {
-                // This is how to tell the camera to lock focus.
-                Log.d(TAG, "locking focus");
-                MeteringRectangle focusAreaTouch = new MeteringRectangle(
-                        4096/2 -200,
-                        5488/2 -200 ,
-                        400 ,
-                        400 ,
-                        MeteringRectangle.METERING_WEIGHT_MAX - 1);
-
-
-                // https://gist.github.com/royshil/8c760c2485257c85a11cafd958548482#file-androidcamera2touchtofocus-java
-                mPreviewRequestBuilder.set(
-                        CaptureRequest.CONTROL_AF_REGIONS,
-                        new MeteringRectangle[]{focusAreaTouch});
-
-                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                        CaptureRequest.CONTROL_AF_TRIGGER_START);
+                setFocusTrigger();
                 // Tell #mCaptureCallback to wait for the lock.
-                mState = STATE_WAITING_LOCK;
+                mCaptureEngine.lockFocus();
             }
 
 
@@ -848,6 +1297,65 @@ public class Camera2BasicFragment extends Fragment
 
     }
 
+    /**
+     * Locks the focus at the start of a lightstage session without taking a picture. Once it is
+     * locked {@link #onSessionFocusLocked()} prepares the shots.
+     */
+    private void primeFocus() {
+        try {
+            setFocusTrigger();
+            // Tell #mCaptureCallback to wait for the lock.
+            mCaptureEngine.primeFocus();
+            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the AF region and trigger of {@link #mPreviewRequestBuilder} that lock the focus.
+     */
+    private void setFocusTrigger() {
+        // This is how to tell the camera to lock focus.
+        Log.d(TAG, "locking focus");
+        MeteringRectangle focusAreaTouch = new MeteringRectangle(
+                4096/2 -200,
+                5488/2 -200 ,
+                400 ,
+                400 ,
+                MeteringRectangle.METERING_WEIGHT_MAX - 1);
+
+
+        // https://gist.github.com/royshil/8c760c2485257c85a11cafd958548482#file-androidcamera2touchtofocus-java
+        mPreviewRequestBuilder.set(
+                CaptureRequest.CONTROL_AF_REGIONS,
+                new MeteringRectangle[]{focusAreaTouch});
+
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_START);
+    }
+
+    /**
+     * Called by {@link #mCaptureEngine} once the focus of {@link #primeFocus()} is locked. The
+     * shots keep it locked, and in {@link CaptureConfig#burstMode} their still requests are built
+     * now, with the lens in place.
+     */
+    private void onSessionFocusLocked() {
+        KEEP_FOCUS_LOCKED = true;
+        resumePreviewState();
+        if (mCaptureConfig.burstMode) {
+            prepareStillBurst();
+        }
+        LightstageController controller = mLightstageController;
+        if (null != controller) {
+            // the shots were held back until now
+            controller.updateCredits();
+        }
+    }
+
     /**
      * Run the precapture sequence for capturing a still image. This method should be called when
      * we get a response in {@link #mCaptureCallback} from {@link #lockFocus()}.
@@ -857,8 +1365,7 @@ public class Camera2BasicFragment extends Fragment
             // This is how to tell the camera to trigger.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
+            // mCaptureEngine is already waiting for the precapture sequence to be set.
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -866,62 +1373,300 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    private float exposureTime=0.05f;
+
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     * The exposure times in seconds every shot of the current session is bracketed with. Starts
+     * out as {@link CaptureConfig#exposureLadder} and can be replaced by the lightstage.
      */
-    private float exposureTime=0.25f;
-
-    private void captureStillPicture() {
-        try {
-            final Activity activity = getActivity();
-            if (null == activity || null == mCameraDevice) {
-                return;
-            }
-            // This is the CaptureRequest.Builder that we use to take a picture.
-            final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
+    private volatile float[] mExposureLadder = new float[0];
 
-            // Use the same AE and AF modes as the preview.
-            //captureBuilder.set(
-            //        CaptureRequest.CONTROL_AF_MODE,
-            //        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE
-            //);
+    /**
+     * Sensor sensitivity (ISO) of the still captures.
+     */
+    private static final int STILL_SENSITIVITY = 400;
 
+    /**
+     * JPEG quality of the still captures.
+     */
+    private static final byte STILL_JPEG_QUALITY = 100;
 
-            // setAutoFlash(captureBuilder);
-            setManualMode(captureBuilder);
-            setExposureTime(captureBuilder, exposureTime);
-
-            // Orientation
-            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+    /**
+     * JPEG orientation of the still captures, fixed when a lightstage session is initialized.
+     */
+    private int mStillJpegOrientation;
 
-            CameraCaptureSession.CaptureCallback CaptureCallback
-                    = new CameraCaptureSession.CaptureCallback() {
+    /**
+     * The still capture requests of the current camera session, built by
+     * {@link #createStillCaptureBuilder(StillRequestCache.Key)}.
+     */
+    private final StillRequestCache<CaptureRequest> mStillRequestCache = new StillRequestCache<>(
+            new StillRequestCache.Factory<CaptureRequest>() {
 
                 @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                               @NonNull CaptureRequest request,
-                                               @NonNull TotalCaptureResult result) {
-                    // showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
-
-                    backToPreviewState(); // this was unlockFocus before but we just need to go back to preview state so I split it up to 2 functions
-                    // unlockFocus(); // needed to uncomment this because we shoot a sequence and
-                    // therfore need the focus to stay the same
+                public CaptureRequest create(StillRequestCache.Key key)
+                        throws CameraAccessException {
+                    Log.d(TAG, "building still request: " + key);
+                    return createStillCaptureBuilder(key).build();
                 }
-            };
 
-            mCaptureSession.stopRepeating();
-            mCaptureSession.abortCaptures();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            });
+
+    /**
+     * Returns the {@link StillRequestCache.Key} for the current still capture settings.
+     */
+    private StillRequestCache.Key currentStillKey() {
+        return stillKey(exposureTime);
+    }
+
+    private StillRequestCache.Key stillKey(float exposureTimeInSeconds) {
+        return new StillRequestCache.Key(exposureTimeInSeconds, STILL_SENSITIVITY,
+                STILL_JPEG_QUALITY, mStillJpegOrientation);
+    }
+
+    /**
+     * Returns the exposure times of the frames taken for every shot: the exposure ladder if one
+     * is set, the single {@link #exposureTime} otherwise.
+     */
+    private float[] stillExposures() {
+        float[] ladder = mExposureLadder;
+        return ladder.length > 0 ? ladder : new float[]{exposureTime};
+    }
+
+    /**
+     * Returns the cached still requests of a shot, one for each of {@link #stillExposures()}.
+     */
+    private List<CaptureRequest> stillRequests() throws CameraAccessException {
+        float[] exposures = stillExposures();
+        List<CaptureRequest> requests = new ArrayList<>(exposures.length);
+        for (float exposure : exposures) {
+            requests.add(mStillRequestCache.get(stillKey(exposure)));
+        }
+        return requests;
+    }
+
+    /**
+     * Fixes the still capture orientation and builds the still requests for the settings of the
+     * session that is about to start.
+     *
+     * @param activity The activity used to look up the current display rotation
+     */
+    private void primeStillRequests(Activity activity) throws CameraAccessException {
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        mStillJpegOrientation = getOrientation(rotation);
+        List<StillRequestCache.Key> keys = new ArrayList<>();
+        for (float exposure : stillExposures()) {
+            keys.add(stillKey(exposure));
+        }
+        mStillRequestCache.prime(keys);
+    }
+
+    /**
+     * Creates a {@link CaptureRequest.Builder} for a still picture with the manual settings we use
+     * for lightstage captures.
+     *
+     * @param key The capture settings of the picture
+     * @return The builder, targeting {@link #mImageReader}
+     */
+    private CaptureRequest.Builder createStillCaptureBuilder(StillRequestCache.Key key)
+            throws CameraAccessException {
+        // This is the CaptureRequest.Builder that we use to take a picture.
+        final CaptureRequest.Builder captureBuilder =
+                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mImageReader.getSurface());
+        if (null != mRawImageReader) {
+            captureBuilder.addTarget(mRawImageReader.getSurface());
+        }
+
+        // Use the same AE and AF modes as the preview.
+        //captureBuilder.set(
+        //        CaptureRequest.CONTROL_AF_MODE,
+        //        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE
+        //);
+
+
+        // setAutoFlash(captureBuilder);
+        setManualMode(captureBuilder);
+        captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, key.sensitivity);
+        captureBuilder.set(CaptureRequest.JPEG_QUALITY, key.jpegQuality);
+        setExposureTime(captureBuilder, key.exposureTime);
+
+        // Orientation
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, key.jpegOrientation);
+        return captureBuilder;
+    }
+
+    /**
+     * Capture a still picture. This method should be called when we get a response in
+     * {@link #mCaptureCallback} from both {@link #lockFocus()}. Unless
+     * {@link CaptureConfig#stopPreviewForStills} is set, the still is interleaved with the running
+     * preview request. A bracketed shot is submitted as one burst.
+     */
+    private void captureStillPicture() {
+        try {
+            if (null == mCameraDevice) {
+                return;
+            }
+            List<CaptureRequest> requests = stillRequests();
+
+            if (mCaptureConfig.stopPreviewForStills) {
+                mCaptureSession.stopRepeating();
+                mCaptureSession.abortCaptures();
+            }
+            mCaptureEngine.getTimings().stillsSubmitted(requests.size());
+            if (requests.size() == 1) {
+                mCaptureSession.capture(requests.get(0), mStillCaptureCallback,
+                        mBackgroundHandler);
+            } else {
+                mCaptureSession.captureBurst(requests, mStillCaptureCallback, mBackgroundHandler);
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} for the requests of
+     * {@link #captureStillPicture()}.
+     */
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            onStillCaptureCompleted(result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            Log.e(TAG, "still capture failed for frame " + failure.getFrameNumber());
+            onStillCaptureFailed(failure);
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                               int sequenceId, long frameNumber) {
+            Log.d(TAG, "still capture completed");
+
+            if (mCaptureConfig.stopPreviewForStills) {
+                backToPreviewState(); // this was unlockFocus before but we just need to go back to preview state so I split it up to 2 functions
+                // unlockFocus(); // needed to uncomment this because we shoot a sequence and
+                // therfore need the focus to stay the same
+            } else {
+                resumePreviewState();
+            }
+        }
+
+    };
+
+    /**
+     * Builds the still requests that {@link #captureStillBurst()} submits for every lightstage
+     * shot. This is called once the focus is locked at the start of a session, see
+     * {@link #onSessionFocusLocked()}, so the per-shot path doesn't have to go through
+     * {@link #lockFocus()} again.
+     */
+    private void prepareStillBurst() {
+        try {
+            if (null == mCameraDevice) {
+                return;
+            }
+            mStillBurst = stillRequests();
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Submits the prepared {@link #mStillBurst} with {@link CameraCaptureSession#captureBurst}.
+     * The repeating preview request keeps running, so the pipeline doesn't have to be torn down
+     * and restarted for every shot.
+     */
+    private void captureStillBurst() throws CameraAccessException {
+        List<CaptureRequest> burst = mStillBurst;
+        if (null == burst || null == mCaptureSession) {
+            throw new IllegalStateException("still burst is not prepared");
+        }
+        mCaptureEngine.getTimings().stillsSubmitted(burst.size());
+        mCaptureSession.captureBurst(burst, mStillBurstCallback, mBackgroundHandler);
+    }
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} for the requests of {@link #mStillBurst}.
+     */
+    private final CameraCaptureSession.CaptureCallback mStillBurstCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            onStillCaptureCompleted(result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            Log.e(TAG, "burst capture failed for frame " + failure.getFrameNumber());
+            onStillCaptureFailed(failure);
+        }
+
+    };
+
+    /**
+     * Applies the still capture settings to the repeating request that streams the ZSL frames.
+     */
+    private void setZslStillSettings(CaptureRequest.Builder requestBuilder) {
+        Activity activity = getActivity();
+        if (null != activity) {
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            mStillJpegOrientation = getOrientation(rotation);
+        }
+        StillRequestCache.Key key = currentStillKey();
+        setManualMode(requestBuilder);
+        requestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, key.sensitivity);
+        requestBuilder.set(CaptureRequest.JPEG_QUALITY, key.jpegQuality);
+        setExposureTime(requestBuilder, key.exposureTime);
+        requestBuilder.set(CaptureRequest.JPEG_ORIENTATION, key.jpegOrientation);
+    }
+
+    /**
+     * Returns the current time in the timebase of the sensor timestamps. Timestamps of an
+     * {@code UNKNOWN} source are monotonic, which on the devices we use matches
+     * {@link System#nanoTime()}.
+     */
+    private long sensorTimeNow() {
+        return mSensorTimestampRealtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    /**
+     * Picks the first streamed frame exposed after the light settled and saves it as the only
+     * frame of {@code shot}. This replaces {@link #takePicture()} in ZSL mode; the streamed frames
+     * all have the same exposure, so ZSL shots aren't bracketed.
+     */
+    private void captureZslPicture(final LightstageShot shot) {
+        long notBeforeNs = sensorTimeNow()
+                + TimeUnit.MILLISECONDS.toNanos(mCaptureConfig.zslSettleTimeMs);
+        final ImageQueue queue = mImageQueue;
+        mZslBuffer.trigger(notBeforeNs, new ZslRingBuffer.Callback<Image>() {
+
+            @Override
+            public void onFramePicked(Image frame) {
+                // the frame leaves the ring buffer and holds its reader slot until it is saved
+                AutoCloseable handle = queue.onImageAcquired(frame);
+                shot.frames[0].imageAvailableNs = mCaptureEngine.getTimings().imageAvailable();
+                journalCaptured(shot.frames[0]);
+                submitSave(mImageSaverPool, newImageSaver(frame, handle, shot.frames[0]), handle,
+                        shot.frames[0]);
+            }
+
+        });
+    }
+
     /**
      * Retrieves the JPEG orientation from the specified screen rotation.
      *
@@ -951,7 +1696,7 @@ public class Camera2BasicFragment extends Fragment
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
+            mCaptureEngine.reset();
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -959,6 +1704,19 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    /**
+     * Returns to the preview state after a still that was interleaved with the running preview.
+     * The repeating request never stopped, so only the AF trigger and {@link #mCaptureEngine}
+     * are reset.
+     */
+    private void resumePreviewState() {
+        // keep focus locked!!!
+        mPreviewRequestBuilder.set(
+                CaptureRequest.CONTROL_AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        mCaptureEngine.reset();
+    }
+
     private void unlockFocus() {
         try {
             // Reset the auto-focus trigger
@@ -968,7 +1726,7 @@ public class Camera2BasicFragment extends Fragment
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
+            mCaptureEngine.reset();
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -981,7 +1739,7 @@ public class Camera2BasicFragment extends Fragment
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.picture: {
-                new initiateRemoteControlFromPi().execute("");
+                startLightstageController();
                 break;
             }
             case R.id.info: {
@@ -1005,183 +1763,639 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * count from 0 for every lightstage capture session
+     * The controller of the lightstage connection, {@code null} while there is none.
      */
+    private volatile LightstageController mLightstageController;
 
-    private static DataOutputStream lightstageOutStream = null;
-    private static DataOutputStream pmdOutStream = null;
-    private static DataInputStream lightstageInputStream = null;
-    private static DataInputStream pmdInputStream = null;
+    /**
+     * count from 0 for every lightstage capture session
+     */
     private int pictureCounter=0;
     private String pictureSession;
 
-    private class initiateRemoteControlFromPi extends AsyncTask<String, Void, String> {
+    /**
+     * The pack the frames of the current session are appended to when
+     * {@link CaptureConfig#sessionPack} is enabled, {@code null} otherwise.
+     */
+    private volatile SessionPack.Writer mSessionPack;
 
-        @Override
-        protected String doInBackground(String... params) {
-            //String hostname = "192.168.9.126";
-            //String hostname = "192.168.43.123";
-            String hostname = "lightstage"; // TODO: put hostname into UI - and remember the last one used
-            Socket lightstageClientSocket = null;
-            int lightStagePort=50007;
-            Socket pmdClientSocket = null;
-            int pmdPort=50008;
+    /**
+     * The storage budget of the current session.
+     */
+    private volatile StorageBudget mStorageBudget;
 
+    /**
+     * The number of shots the lightstage announced and the phone admitted for the current
+     * session, or -1 if it didn't announce any.
+     */
+    private volatile int mExpectedShots = -1;
 
+    /**
+     * Whether the operator has been warned that the storage is running out this session.
+     */
+    private volatile boolean mStorageWarned;
 
-            try {
-                boolean pmd_present=false;
-                try {
-                    lightstageClientSocket = new Socket(hostname, lightStagePort);
-                    }
-                catch (UnknownHostException e) {
-                    System.err.println("Don't know about host: " + hostname + " trying airowski for devel");
-                    //hostname = "192.168.9.61";
-                    hostname =  "airowski";
-                    try {
-                        lightstageClientSocket = new Socket(hostname, lightStagePort);
-                    }
-                    catch (UnknownHostException e1) {
-                        System.err.println("Don't know about host: " + hostname );
-                    }
-                }
-                // ONCE WE KNOW THE HOSTNAME WE TRY TO CONNECT TO PMD
-                try {
-                    pmdClientSocket = new Socket(hostname, pmdPort);
-                    pmd_present=true;
-                }
-                catch (IOException e) {
-                    System.err.println("PMD not present - continuing without it");
+    /**
+     * Starts the storage budget of a new session.
+     */
+    private void startStorageBudget() {
+        final File dir = getActivity().getExternalFilesDir(null);
+        long rawBytes = null != mRawImageReader
+                ? (long) mRawImageReader.getWidth() * mRawImageReader.getHeight() * 2 : 0;
+        mStorageBudget = new StorageBudget(new StorageBudget.Storage() {
+            @Override
+            public long availableBytes() {
+                // the preallocated part of the session pack is ours to fill
+                SessionPack.Writer pack = mSessionPack;
+                return dir.getUsableSpace() + (null != pack ? pack.reservedBytes() : 0);
+            }
+        }, mCaptureConfig.storageReserveMb * 1024L * 1024L,
+                stillExposures().length * (worstCaseFrameBytes() + rawBytes));
+        mExpectedShots = -1;
+        mStorageWarned = false;
+    }
 
-                }
+    /**
+     * Warns the operator once the storage won't hold the rest of the session, well before the
+     * shots start to fail.
+     */
+    private void checkStorageBudget() {
+        StorageBudget budget = mStorageBudget;
+        if (null == budget || mStorageWarned) {
+            return;
+        }
+        int shotsLeft = budget.shotsLeft();
+        int remaining = mExpectedShots >= 0 ? mExpectedShots - pictureCounter : -1;
+        if (shotsLeft < mCaptureConfig.storageWarningShots || shotsLeft < remaining) {
+            mStorageWarned = true;
+            String warning = "storage running out: " + shotsLeft + " shots left"
+                    + (remaining >= 0 ? ", " + remaining + " to go" : "");
+            Log.w(TAG, warning);
+            showToast(warning);
+        }
+    }
 
+    /**
+     * Streams the saved shots of the current session to the lightstage host when
+     * {@link CaptureConfig#streamFrames} is enabled, {@code null} otherwise.
+     */
+    private volatile FrameStreamer mFrameStreamer;
 
-                lightstageOutStream = new DataOutputStream(lightstageClientSocket.getOutputStream());
-                lightstageInputStream = new DataInputStream(lightstageClientSocket.getInputStream());
-                // Send first message
-                lightstageOutStream.writeByte(1); // INIT LIGHTSTAGE
-                lightstageOutStream.flush(); // Send off the data
+    /**
+     * Starts streaming the shots of a new session to {@code host}.
+     */
+    private void startFrameStreamer(String host) {
+        stopFrameStreamer(true);
+        if (mCaptureConfig.streamFrames && null != host) {
+            mFrameStreamer = new FrameStreamer(host, mCaptureConfig.transferPort,
+                    mCaptureConfig.transferKbPerSecond * 1024L, CaptureTimings.SYSTEM_CLOCK);
+        }
+    }
 
-                if (pmd_present) {
-                    pmdOutStream = new DataOutputStream(pmdClientSocket.getOutputStream());
-                    pmdInputStream = new DataInputStream(pmdClientSocket.getInputStream());
+    /**
+     * Queues the files of a saved shot for streaming.
+     */
+    private void streamShot(LightstageShot shot) {
+        FrameStreamer streamer = mFrameStreamer;
+        if (null == streamer || shot.hasFailed()) {
+            return;
+        }
+        if (null != shot.pack) {
+            for (SessionPack.Entry entry : shot.pack.entriesOf(shot.index)) {
+                streamer.offer(shot.pack.getFile(), entry);
+            }
+        } else {
+            for (LightstageShot.Frame frame : shot.frames) {
+                streamer.offer(frame.file);
+            }
+        }
+        if (shot.outputs > 1) {
+            // DNGs are always files of their own
+            for (LightstageShot.Frame frame : shot.frames) {
+                streamer.offer(frame.rawFile);
+            }
+        }
+    }
 
-                    pmdOutStream.writeByte(1); // INIT PMD
-                    pmdOutStream.flush(); // Send off the data
-                }
+    /**
+     * Stops streaming the current session.
+     *
+     * @param drain Whether to send the queued shots first
+     */
+    private void stopFrameStreamer(boolean drain) {
+        FrameStreamer streamer = mFrameStreamer;
+        mFrameStreamer = null;
+        if (null != streamer) {
+            if (drain) {
+                streamer.finish();
+            } else {
+                streamer.close();
+            }
+        }
+    }
 
-                Log.d(TAG, "waiting for lightstage");
+    /**
+     * The journal of the current session when {@link CaptureConfig#sessionJournal} is enabled,
+     * {@code null} otherwise.
+     */
+    private volatile SessionJournal mJournal;
 
-                if (lightstageInputStream.readByte()==1) {
-                    Log.d(TAG, "lightstage ready!");
-                }
+    /**
+     * Starts a new session, or resumes the last one if it was cut off after some of its shots
+     * were saved.
+     *
+     * @return The index of the last saved shot of a resumed session, or -1
+     */
+    private int startSession() {
+        pictureSession = getCurrentTimeStamp();
+        pictureCounter = 0;
+        closeJournal(false);
+        if (!mCaptureConfig.sessionJournal) {
+            return -1;
+        }
+        File dir = getActivity().getExternalFilesDir(null);
+        try {
+            SessionJournal.Recovery recovery = SessionJournal.recover(dir);
+            if (null != recovery && recovery.lastSavedShot >= 0) {
+                mJournal = SessionJournal.resume(recovery);
+                pictureSession = recovery.session;
+                pictureCounter = recovery.lastSavedShot + 1;
+                recoverSessionPacks(dir, recovery.lastSavedShot);
+                showToast("resuming " + pictureSession + " at shot " + pictureCounter);
+                mJournal.command(pictureCounter, LightstageController.INIT);
+                return recovery.lastSavedShot;
+            }
+            mJournal = SessionJournal.create(dir, pictureSession);
+            mJournal.command(pictureCounter, LightstageController.INIT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "couldn't open the session journal - the session can't be resumed");
+            closeJournal(false);
+        }
+        return -1;
+    }
 
-                if (pmd_present) {
-                    Log.d(TAG, "waiting for pmd");
-                    // wait for pmd to answer
-                    if (pmdInputStream.readByte()==1) {
-                        Log.d(TAG, "pmd ready!");
-                    }
-                }
+    /**
+     * Writes the index of the packs of {@link #pictureSession} that were cut off, keeping the
+     * frames of the shots up to {@code lastSavedShot}.
+     */
+    private void recoverSessionPacks(File dir, int lastSavedShot) {
+        File[] packs = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(pictureSession)
+                        && file.getName().endsWith(".pack");
+            }
+        });
+        if (null == packs) {
+            return;
+        }
+        for (File pack : packs) {
+            try {
+                int frames = SessionPack.recover(pack, lastSavedShot);
+                Log.d(TAG, "session pack " + pack.getName() + ": " + frames + " frames");
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e(TAG, "couldn't recover the session pack " + pack.getName());
+            }
+        }
+    }
 
-                pictureSession = getCurrentTimeStamp();
-                Log.d(TAG, "timestamp: " + pictureSession );
-                pictureCounter=0;
+    private void journalCommand(byte command) {
+        SessionJournal journal = mJournal;
+        if (null != journal) {
+            try {
+                journal.command(pictureCounter, command);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                lockFocus();
+    private void journalCaptured(LightstageShot.Frame frame) {
+        SessionJournal journal = mJournal;
+        if (null != journal) {
+            try {
+                journal.captured(frame);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
+    private void journalShotSaved(LightstageShot shot) {
+        SessionJournal journal = mJournal;
+        if (null != journal) {
+            try {
+                journal.shotSaved(shot, mCaptureConfig.durability != GroupCommitter.Mode.NONE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                boolean pmd_recording=false;
-                while (true) {
-                    int command = lightstageInputStream.readByte();
+    /**
+     * The checksums of the current session when {@link CaptureConfig#checksum} is set,
+     * {@code null} otherwise.
+     */
+    private volatile SessionManifest mManifest;
 
-                    if (command == 2) {
-                        if (pmd_present && pmd_recording==false) {
-                            // start recording on pmd
-                            pmdOutStream.writeByte(2); // start recording
-                            pmdOutStream.flush(); // Send off the data
-                            pmd_recording=true;
-                        }
+    /**
+     * Opens {@link #mManifest} for the current session, continuing the one of a resumed session.
+     */
+    private void openManifest() {
+        closeManifest();
+        if (null == mCaptureConfig.checksum) {
+            return;
+        }
+        try {
+            mManifest = new SessionManifest(getActivity().getExternalFilesDir(null),
+                    pictureSession);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                        mFile = new File(getActivity().getExternalFilesDir(null), pictureSession + "_" + String.format("%04d", pictureCounter) + ".jpg");
+    private void closeManifest() {
+        SessionManifest manifest = mManifest;
+        mManifest = null;
+        if (null != manifest) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                        //exposureTime=0.1f;
+    /**
+     * Closes {@link #mJournal}.
+     *
+     * @param ended Whether the session ended cleanly, so it won't be resumed
+     */
+    private void closeJournal(boolean ended) {
+        SessionJournal journal = mJournal;
+        mJournal = null;
+        if (null == journal) {
+            return;
+        }
+        try {
+            if (ended) {
+                journal.ended(pictureCounter);
+            } else {
+                journal.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                        try {
-                            takePicture();
-                            KEEP_FOCUS_LOCKED=true;
-                            //captureStillPicture();
+    /**
+     * Creates {@link #mSessionPack} for the current session. With a {@code capacity} the pack is
+     * preallocated and written through a memory map, otherwise with channel writes.
+     */
+    private void openSessionPack(long capacity) {
+        // a resumed session continues in a pack of its own, the one cut off was recovered
+        String name = pictureCounter > 0
+                ? pictureSession + String.format(Locale.US, "_%04d", pictureCounter)
+                : pictureSession;
+        File file = new File(getActivity().getExternalFilesDir(null), name + ".pack");
+        try {
+            mSessionPack = capacity > 0
+                    ? new SessionPack.MappedWriter(file, capacity)
+                    : new SessionPack.Writer(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "couldn't create the session pack - saving separate files");
+        }
+    }
 
-                        }
-                        catch (Exception e) {
-                            e.printStackTrace();
-                            Log.d(TAG, "something went wrong during takePicture");
-                            try {
-                                lightstageOutStream.writeByte(-2);
-                                if (pmd_present)
-                                    pmdOutStream.writeByte(-2);
-                            }
-                            catch (IOException e1) {
-                                e1.printStackTrace();
-                            }
-                        }
-                        //exposureTime=0.2f; // bracketing
-                        //takePicture();
-
-
-                        Log.d( TAG, "taking picture" + String.format("%04d", pictureCounter));
-                        pictureCounter++;
-//                        runnable.setData("took picture");
-//                        runOnUiThread(runnable);
-                    } else if (command == -1) {
-                        unlockFocus();
-                        KEEP_FOCUS_LOCKED = false;
-
-                        if (pmd_present) {
-                            pmdOutStream.writeByte(-1);
-                            int pmdReturn=0;
-                            while (pmdReturn!=-1) {
-                                pmdReturn = pmdInputStream.readByte();
-                                if ( pmdReturn == -1) { // CLOSE PMD
-                                    Log.d(TAG, "pmd shutdown successful");
-                                    showToast("pmd shutdown successful");
-                                } else if ( pmdReturn == 2) {
-                                    Log.d(TAG, "pmd writing now");
-                                    showToast("pmd writing now");
-                                }
-                                else {
-                                    Log.d(TAG, "unknown message from pmd" + String.format("%04d", pictureCounter));
-                                    showToast("unknown message from pmd" + String.format("%04d", pictureCounter));
-                                }
-                            }
-//                        pmdInputStream.close();
-                            pmdInputStream.close();
-                            pmdOutStream.close();
-                            pmdClientSocket.close();
-                        }
-                        lightstageInputStream.close();
-                        lightstageOutStream.close();
-                        lightstageClientSocket.close(); // close is the preferred way over shutdown
+    /**
+     * Returns an upper bound for the size of one still: a JPEG at quality 100 stays below a byte
+     * per pixel, and the interleaved chroma planes of a YUV dump add up to two bytes per pixel
+     * before the row padding.
+     */
+    private long worstCaseFrameBytes() {
+        long pixels = (long) mImageReader.getWidth() * mImageReader.getHeight();
+        if (mImageReader.getImageFormat() == ImageFormat.YUV_420_888) {
+            return pixels * 5 / 2 + YuvSaver.headerBytes(3);
+        }
+        return pixels;
+    }
+
+    /**
+     * Closes {@link #mSessionPack}, which writes its index.
+     */
+    private void closeSessionPack() {
+        SessionPack.Writer pack = mSessionPack;
+        mSessionPack = null;
+        if (null == pack) {
+            return;
+        }
+        try {
+            pack.close();
+            Log.d(TAG, "session pack " + pack.getFile().getName() + ": "
+                    + pack.frameCount() + " frames");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Signals the lightstage once the frames of a shot are handled, with exactly one
+     * {@link LightstageController#FRAME_SAVED} or {@link LightstageController#ERROR} per shot.
+     */
+    private final ImageSaver.Callback mImageSaverCallback = new ImageSaver.Callback() {
+
+        @Override
+        public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+            Log.e(TAG, "couldn't save " + frame.file.getName() + ": " + e.getMessage());
+        }
 
-                        Log.d( TAG,"clean exit");
-                        return null;
-                    }
+        @Override
+        public void onShotSaved(LightstageShot shot) {
+            journalShotSaved(shot);
+            StorageBudget budget = mStorageBudget;
+            if (null != budget) {
+                budget.onShotSaved(shot.bytesWritten());
+                checkStorageBudget();
+            }
+            streamShot(shot);
+            List<SessionManifest.Entry> checksums = shot.checksums();
+            SessionManifest manifest = mManifest;
+            if (null != manifest && !shot.hasFailed()) {
+                try {
+                    manifest.add(checksums);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            }
+            LightstageController controller = mLightstageController;
+            if (controller != null && shot.hasFailed()) {
+                controller.frameFailed(shot.sequence);
+            } else if (controller != null) {
+                Log.d(TAG, "signaling lightstage to continue");
+                controller.frameSaved(shot.sequence, checksums);
+            } else {
+                Log.e(TAG, "lightstage Outputstream not available");
+            }
+        }
+
+    };
+
+    /**
+     * Takes the pictures the lightstage asks for.
+     */
+    private final LightstageController.Listener mLightstageListener
+            = new LightstageController.Listener() {
+
+        @Override
+        public int onSessionStarted() {
+            int lastSavedShot = startSession();
+            Log.d(TAG, "timestamp: " + pictureSession );
+            mCaptureEngine.getTimings().reset();
+            closeSessionPack();
+            mExposureLadder = mCaptureConfig.exposureLadder;
+            startStorageBudget();
+            openManifest();
+            openMetadataLog();
+            LightstageController controller = mLightstageController;
+            if (null != controller) {
+                rememberLightstageAddress(controller.getHost());
+            }
+            startFrameStreamer(null != controller ? controller.getHost() : null);
 
+            try {
+                primeStillRequests(getActivity());
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
 
-            } catch (UnknownHostException e) {
-                System.err.println("Don't know about host: " + hostname);
+            primeFocus();
+            return lastSavedShot;
+        }
+
+        @Override
+        public int onFrameCount(int shots) {
+            journalCommand(LightstageController.FRAME_COUNT);
+            // a resumed session only has the shots after the last saved one left to take
+            int admitted = pictureCounter + mStorageBudget.admit(shots - pictureCounter);
+            if (admitted < shots) {
+                Log.w(TAG, "only " + admitted + " of " + shots + " shots fit into the storage");
+                showToast("not enough storage: session shrunk to " + admitted + " of " + shots
+                        + " shots");
+            }
+            mExpectedShots = admitted;
+            if (mCaptureConfig.sessionPack && null == mSessionPack && admitted > pictureCounter) {
+                int brackets = stillExposures().length;
+                long frameBytes = worstCaseFrameBytes() + SessionPack.recordBytes(
+                        LightstageShot.fileName(pictureSession, admitted, brackets - 1, brackets,
+                                ".yuv"));
+                long capacity = SessionPack.HEADER_BYTES
+                        + (long) (admitted - pictureCounter) * brackets * frameBytes;
+                openSessionPack(capacity);
+            }
+            return admitted;
+        }
+
+        @Override
+        public void onShoot(int sequence) throws Exception {
+            journalCommand(LightstageController.SHOOT);
+            if (mCaptureConfig.sessionPack && null == mSessionPack) {
+                // the lightstage didn't announce the frame count, so nothing is preallocated
+                openSessionPack(0);
+            }
+            StorageBudget budget = mStorageBudget;
+            if (null != budget && budget.shotsLeft() < 1) {
+                throw new IOException("storage full - " + budget.shotBytes()
+                        + " bytes needed per shot");
+            }
+            int brackets = null != mZslBuffer ? 1 : stillExposures().length;
+            int outputs = null != mRawImageReader ? 2 : 1;
+            LightstageShot shot = new LightstageShot(
+                    getActivity().getExternalFilesDir(null), pictureSession,
+                    pictureCounter, brackets, outputs,
+                    mCaptureConfig.yuvMode ? ".yuv" : ".jpg", mSessionPack, mGroupCommitter,
+                    mCaptureConfig.checksum);
+            shot.sequence = sequence;
+            Log.d( TAG, "taking picture" + String.format("%04d", pictureCounter));
+            pictureCounter++;
+
+            reserveImageQueue(mImageQueue, brackets);
+            if (null != mZslBuffer) {
+                captureZslPicture(shot);
+                return;
+            }
+            try {
+                reserveImageQueue(mRawImageQueue, brackets);
             } catch (IOException e) {
-                System.err.println("Couldn't get I/O for the connection to: " + hostname);
-                System.err.println(e);
+                mImageQueue.cancel(brackets);
+                throw e;
+            }
+            List<LightstageShot.Frame> frames = Arrays.asList(shot.frames);
+            mPendingFrames.addAll(frames);
+            mCapturingFrames.addAll(frames);
+            if (null != mRawImageReader) {
+                mPendingRawFrames.addAll(frames);
+            }
+            try {
+                if (mCaptureConfig.burstMode) {
+                    captureStillBurst();
+                } else {
+                    takePicture();
+                    KEEP_FOCUS_LOCKED=true;
+                }
+            } catch (Exception e) {
+                mPendingFrames.removeAll(frames);
+                mCapturingFrames.removeAll(frames);
+                mPendingRawFrames.removeAll(frames);
+                mImageQueue.cancel(brackets);
+                if (null != mRawImageQueue) {
+                    mRawImageQueue.cancel(brackets);
+                }
+                throw e;
+            }
+        }
 
+        @Override
+        public int shotCredits() {
+            StorageBudget budget = mStorageBudget;
+            int credits = null != budget ? budget.shotsLeft() : Integer.MAX_VALUE;
+            int brackets = null != mZslBuffer ? 1 : stillExposures().length;
+            credits = Math.min(credits, shotsThatFit(mImageQueue, brackets));
+            credits = Math.min(credits, shotsThatFit(mRawImageQueue, brackets));
+            if (mCaptureConfig.burstMode && null == mZslBuffer && null == mStillBurst) {
+                // the burst is only built once the focus is locked
+                credits = 0;
+            }
+            credits = Math.min(credits, mImageSaverPool.freeSlots() / brackets);
+            if (null != mRawImageReader) {
+                credits = Math.min(credits, mDngWriterPool.freeSlots() / brackets);
+            }
+            if (!mCaptureConfig.burstMode && null == mZslBuffer) {
+                // takePicture runs the focus and exposure sequence of one shot at a time
+                int state = mCaptureEngine.getState();
+                boolean idle = mPendingFrames.isEmpty()
+                        && (state == CaptureEngine.STATE_PREVIEW
+                        || state == CaptureEngine.STATE_PICTURE_TAKEN);
+                credits = Math.min(credits, idle ? 1 : 0);
+            }
+            return credits;
+        }
+
+        @Override
+        public void onExposureLadder(float[] exposures) throws IOException {
+            journalCommand(LightstageController.EXPOSURE_LADDER);
+            // ZSL shots aren't bracketed
+            int capacity = null != mImageQueue && null == mZslBuffer
+                    ? mImageQueue.capacity() : Integer.MAX_VALUE;
+            if (exposures.length > capacity) {
+                // the reader would throw once more images are acquired than it holds
+                showToast("exposure ladder of " + exposures.length + " brackets rejected - "
+                        + "raise the image queue depth to at least that");
+                throw new IOException("exposure ladder of " + exposures.length
+                        + " brackets doesn't fit into an image queue of " + capacity);
+            }
+            mExposureLadder = exposures;
+            try {
+                primeStillRequests(getActivity());
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+            if (mCaptureConfig.burstMode && KEEP_FOCUS_LOCKED) {
+                // otherwise the burst is built with the new ladder once the focus is locked
+                prepareStillBurst();
+            }
+        }
+
+        @Override
+        public void onSessionEnded() {
+            unlockFocus();
+            KEEP_FOCUS_LOCKED = false;
+            mStillBurst = null;
+            closeSessionPack();
+            closeJournal(true);
+            closeManifest();
+            closeMetadataLog();
+            stopFrameStreamer(true);
+            Log.d(TAG, "shot cycle timings:\n" + mCaptureEngine.getTimings().summary());
+            if (null != mImageQueue) {
+                Log.d(TAG, "image queue: max " + mImageQueue.maxAcquired() + " of "
+                        + mImageQueue.capacity() + " images acquired, "
+                        + mImageQueue.waits() + " shots waited for the savers");
             }
-//            TextView txt = (TextView) findViewById(R.id.output);
-//            txt.setText("Executed");
-            return null;
         }
+
+        @Override
+        public void onStatus(String message) {
+            showToast(message);
+        }
+
+    };
+
+    /**
+     * Runs the lightstage sessions on a controller thread of its own, rather than on the shared
+     * {@link android.os.AsyncTask} executor. With {@link CaptureConfig#persistentControl} the
+     * controller serves one session after the other until the fragment is paused.
+     */
+    private void startLightstageController() {
+        if (null != mLightstageController) {
+            Log.d(TAG, "lightstage session already running");
+            return;
+        }
+        final LightstageController controller = new LightstageController(
+                lightstageHosts(), LightstageController.LIGHTSTAGE_PORT,
+                LightstageController.PMD_PORT, mCaptureConfig.controlConnectTimeoutMs,
+                mCaptureConfig.controlIoTimeoutMs, mCaptureConfig.controlKeepAliveMs,
+                mCaptureConfig.persistentControl, mLightstageListener);
+        mLightstageController = controller;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    controller.run();
+                } finally {
+                    mLightstageController = null;
+                }
+            }
+        }, "LightstageController").start();
+    }
+
+
+    /**
+     * Returns the address of the last lightstage, which needs no lookup, followed by the
+     * configured hosts.
+     */
+    private String[] lightstageHosts() {
+        List<String> hosts = new ArrayList<>();
+        Activity activity = getActivity();
+        if (null != activity) {
+            String last = activity.getSharedPreferences(LIGHTSTAGE_PREFERENCES_NAME,
+                    Context.MODE_PRIVATE).getString(KEY_LAST_LIGHTSTAGE_ADDRESS, null);
+            if (null != last) {
+                hosts.add(last);
+            }
+        }
+        for (String host : mCaptureConfig.lightstageHosts) {
+            if (!hosts.contains(host)) {
+                hosts.add(host);
+            }
+        }
+        return hosts.toArray(new String[hosts.size()]);
     }
 
+    /**
+     * Remembers the address of the lightstage across launches, so the next session is connected
+     * without waiting for the name service.
+     */
+    private void rememberLightstageAddress(String address) {
+        Activity activity = getActivity();
+        if (null == activity || null == address) {
+            return;
+        }
+        activity.getSharedPreferences(LIGHTSTAGE_PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_LAST_LIGHTSTAGE_ADDRESS, address).apply();
+    }
 
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
@@ -1208,14 +2422,8 @@ public class Camera2BasicFragment extends Fragment
 //                CaptureRequest.CONTROL_AF_TRIGGER,
 //                CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
 
-        requestBuilder.set(
-                CaptureRequest.SENSOR_SENSITIVITY,
-                400);
-
-        //Set the JPEG quality here like so
-        requestBuilder.set(
-                CaptureRequest.JPEG_QUALITY,
-                (byte)100);
+        // Sensitivity and JPEG quality are part of the StillRequestCache.Key, see
+        // createStillCaptureBuilder().
 
 //        requestBuilder.set(
 //                CaptureRequest.LENS_FOCUS_DISTANCE,
@@ -1227,74 +2435,20 @@ public class Camera2BasicFragment extends Fragment
 
     private void setExposureTime(CaptureRequest.Builder requestBuilder, float exposureTimeInSeconds) {
         requestBuilder.set(
-        CaptureRequest.SENSOR_EXPOSURE_TIME,
-                // (long) exposureTimeInSeconds*1000000000 ); // 500000000L = 0.5 seconds
-                50000000L);
+        CaptureRequest.SENSOR_EXPOSURE_TIME, exposureTimeNanos(exposureTimeInSeconds));
     }
 
-
-
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Converts an exposure time of the ladder to nanoseconds, e.g. 0.5 seconds to 500000000L.
+     * The ladder has microsecond resolution, as the lightstage sends it, so the float is rounded
+     * to whole microseconds in double precision rather than truncated: 0.0125f becomes exactly
+     * 12500000L.
      */
-    private static class ImageSaver implements Runnable {
-
-        /**
-         * The JPEG image
-         */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
-
-        ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
-        }
-
-        @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-
-            FileOutputStream output = null;
-
-            try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.d(TAG, "something went wrong during file save");
-                try {
-                    lightstageOutStream.writeByte(-2);
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
-            } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            if (lightstageOutStream!=null)
-                try {
-                    Log.d(TAG, "signaling lightstage to continue");
-                    lightstageOutStream.writeByte(3);
+    static long exposureTimeNanos(float exposureTimeInSeconds) {
+        return Math.round(exposureTimeInSeconds * 1e6d) * 1000L;
+    }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            else
-                Log.e(TAG, "lightstage Outputstream not available");
-        }
 
-    }
 
     /**
      * Compares two {@code Size}s based on their areas.
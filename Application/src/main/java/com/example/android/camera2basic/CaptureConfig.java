@@ -0,0 +1,369 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings that control how the lightstage capture pipeline takes its pictures.
+ */
+class CaptureConfig {
+
+    private static final String TAG = "CaptureConfig";
+
+    /**
+     * Name of the {@link SharedPreferences} file the settings are read from.
+     */
+    static final String PREFERENCES_NAME = "capture_config";
+
+    private static final String KEY_BURST_MODE = "burst_mode";
+    private static final String KEY_STOP_PREVIEW_FOR_STILLS = "stop_preview_for_stills";
+    private static final String KEY_ZSL_MODE = "zsl_mode";
+    private static final String KEY_ZSL_BUFFER_DEPTH = "zsl_buffer_depth";
+    private static final String KEY_ZSL_SETTLE_TIME_MS = "zsl_settle_time_ms";
+    private static final String KEY_EXPOSURE_LADDER = "exposure_ladder";
+    private static final String KEY_RAW_MODE = "raw_mode";
+    private static final String KEY_DNG_WRITER_THREADS = "dng_writer_threads";
+    private static final String KEY_YUV_MODE = "yuv_mode";
+    private static final String KEY_IMAGE_QUEUE_DEPTH = "image_queue_depth";
+    private static final String KEY_SAVER_THREADS = "saver_threads";
+    private static final String KEY_SESSION_PACK = "session_pack";
+    private static final String KEY_DURABILITY = "durability";
+    private static final String KEY_SESSION_JOURNAL = "session_journal";
+    private static final String KEY_STORAGE_RESERVE_MB = "storage_reserve_mb";
+    private static final String KEY_STORAGE_WARNING_SHOTS = "storage_warning_shots";
+    private static final String KEY_LIGHTSTAGE_HOSTS = "lightstage_hosts";
+    private static final String KEY_CONTROL_CONNECT_TIMEOUT_MS = "control_connect_timeout_ms";
+    private static final String KEY_CONTROL_IO_TIMEOUT_MS = "control_io_timeout_ms";
+    private static final String KEY_CONTROL_KEEP_ALIVE_MS = "control_keep_alive_ms";
+    private static final String KEY_PERSISTENT_CONTROL = "persistent_control";
+    private static final String KEY_METADATA_LOG = "metadata_log";
+    private static final String KEY_CHECKSUM = "checksum";
+    private static final String KEY_STREAM_FRAMES = "stream_frames";
+    private static final String KEY_TRANSFER_PORT = "transfer_port";
+    private static final String KEY_TRANSFER_KB_PER_SECOND = "transfer_kb_per_second";
+    private static final String KEY_GROUP_COMMIT_FRAMES = "group_commit_frames";
+    private static final String KEY_GROUP_COMMIT_INTERVAL_MS = "group_commit_interval_ms";
+    private static final String KEY_SAVER_QUEUE_CAPACITY = "saver_queue_capacity";
+
+    /**
+     * Whether lightstage shots are submitted as a prepared burst of still requests with
+     * {@link android.hardware.camera2.CameraCaptureSession#captureBurst}, skipping the per-shot
+     * focus lock and preview restart.
+     */
+    boolean burstMode = false;
+
+    /**
+     * Whether the repeating preview request is stopped and the in-flight captures are aborted
+     * before every still, and the preview restarted afterwards. By default the still request is
+     * interleaved with the running preview so the pipeline never drains; this is the fallback for
+     * devices that can't capture stills while the preview is streaming.
+     */
+    boolean stopPreviewForStills = false;
+
+    /**
+     * Whether full resolution frames are streamed into a {@link ZslRingBuffer} and every
+     * lightstage shot picks a buffered frame instead of going through the focus lock and
+     * precapture sequence.
+     */
+    boolean zslMode = false;
+
+    /**
+     * The number of streamed frames the zero-shutter-lag buffer holds.
+     */
+    int zslBufferDepth = 4;
+
+    /**
+     * The time the light needs to settle after a lightstage shot command, in milliseconds. Frames
+     * exposed earlier than this are never picked.
+     */
+    int zslSettleTimeMs = 10;
+
+    /**
+     * The exposure times in seconds every lightstage shot is bracketed with, taken back to back
+     * as one burst. An empty ladder takes a single frame at the default exposure time. Stored in
+     * the preferences as a comma separated list, e.g. {@code "0.0125,0.05,0.2"}.
+     */
+    float[] exposureLadder = new float[0];
+
+    /**
+     * Whether every still is also taken as RAW_SENSOR and saved as a DNG next to the JPEG. Only
+     * takes effect on cameras with the RAW capability, and not in {@link #zslMode}.
+     */
+    boolean rawMode = false;
+
+    /**
+     * The number of threads writing DNGs in {@link #rawMode}.
+     */
+    int dngWriterThreads = 2;
+
+    /**
+     * Whether stills are taken as YUV_420_888 and their planes dumped into {@code .yuv} files
+     * (see {@link YuvSaver}) instead of being encoded as JPEG. The files are several times larger,
+     * but the per-frame stall of the JPEG encoder goes away.
+     */
+    boolean yuvMode = false;
+
+    /**
+     * The {@code maxImages} of the still {@link android.media.ImageReader}s, i.e. how many images
+     * may wait for the savers before new stills are held back. The readers hold at least the
+     * {@link #exposureLadder} of a shot; a longer ladder from the lightstage is rejected. In
+     * {@link #zslMode} this many picked frames may wait for the savers; the reader holds them on
+     * top of the ring buffer and the frame streaming in.
+     */
+    int imageQueueDepth = 2;
+
+    /**
+     * The number of threads saving JPEG and YUV images. They are separate from the camera
+     * callback thread, so writes never delay the capture results.
+     */
+    int saverThreads = 1;
+
+    /**
+     * The number of images that may wait for a saver thread (and likewise for a DNG writer
+     * thread). An image beyond that fails its frame instead of blocking the camera thread.
+     */
+    int saverQueueCapacity = 8;
+
+    /**
+     * Whether the JPEG and YUV frames of a session are appended to one {@link SessionPack} file
+     * instead of being saved as one file each. DNGs are still saved as files of their own.
+     */
+    boolean sessionPack = false;
+
+    /**
+     * How saved frames are synced to storage before the lightstage is told they are saved.
+     * Stored in the preferences as {@code "none"}, {@code "per_frame"} or {@code "group"}.
+     */
+    GroupCommitter.Mode durability = GroupCommitter.Mode.NONE;
+
+    /**
+     * The number of frames after which a commit group is synced in
+     * {@link GroupCommitter.Mode#GROUP}. In the lockstep protocol a group never spans more than
+     * one shot, since the lightstage waits for every shot to be acknowledged; the pipelined shots
+     * of protocol v2 share their groups.
+     */
+    int groupCommitFrames = 8;
+
+    /**
+     * The time after which a commit group is synced in {@link GroupCommitter.Mode#GROUP}, in
+     * milliseconds, i.e. how long a pipelined shot may wait for its acknowledgement. Without an
+     * interval every shot syncs its group.
+     */
+    int groupCommitIntervalMs = 100;
+
+    /**
+     * Whether every session keeps a {@link SessionJournal}, so a session cut off by a crash is
+     * resumed after its last saved shot on the next INIT. A saved shot is only as durable as
+     * {@link #durability} makes it.
+     */
+    boolean sessionJournal = false;
+
+    /**
+     * The storage a session always leaves free, in megabytes.
+     */
+    int storageReserveMb = 100;
+
+    /**
+     * The operator is warned once fewer than this many shots fit into the storage, or fewer than
+     * the session still has to take.
+     */
+    int storageWarningShots = 20;
+
+    /**
+     * The hosts the lightstage may run on, names or addresses. All of them are connected at once
+     * and the first to answer is used. Stored in the preferences as a comma separated list.
+     */
+    String[] lightstageHosts = {"lightstage", "airowski"};
+
+    /**
+     * How long connecting to the lightstage and the PMD may take, in milliseconds. Both are
+     * connected at once and have to answer the INIT handshake within
+     * {@link #controlIoTimeoutMs} after that.
+     */
+    int controlConnectTimeoutMs = LightstageController.CONNECT_TIMEOUT_MS;
+
+    /**
+     * How long the lightstage or the PMD may take to answer, to send the rest of a message or to
+     * take a message from the phone, in milliseconds. A PMD that times out is dropped, and a
+     * lockstep shot that found no room for its images fails after waiting this long.
+     */
+    int controlIoTimeoutMs = LightstageController.IO_TIMEOUT_MS;
+
+    /**
+     * How long the phone may send the lightstage nothing before it sends a keep-alive, in
+     * milliseconds, or 0 for none. Only lightstages speaking protocol v2 get keep-alives.
+     */
+    int controlKeepAliveMs = LightstageController.KEEP_ALIVE_MS;
+
+    /**
+     * Whether the connection to the lightstage is kept open for the next session and
+     * reestablished when it is lost, rather than closed once a session ended.
+     */
+    boolean persistentControl = true;
+
+    /**
+     * Whether the key fields of every still capture result, like the exposure time the frame
+     * really got, are logged into a {@link CaptureMetadataLog}. Not available in
+     * {@link #zslMode}, where the stills are picked from the streamed frames.
+     */
+    boolean metadataLog = false;
+
+    /**
+     * The {@link FrameChecksum} algorithm of the checksums computed while frames are saved and
+     * listed in the {@link SessionManifest}, or {@code null} for none. Stored in the preferences
+     * as e.g. {@code "crc32"}, {@code "adler32"}, {@code "SHA-256"} or {@code "none"}.
+     */
+    String checksum = null;
+
+    /**
+     * Whether every saved shot is streamed to the lightstage host by a {@link FrameStreamer}
+     * while the session is still being shot.
+     */
+    boolean streamFrames = false;
+
+    /**
+     * The port of the transfer socket on the lightstage host.
+     */
+    int transferPort = FrameStreamer.TRANSFER_PORT;
+
+    /**
+     * The rate frames are streamed at in kilobytes per second, or 0 for no limit. Keeps the
+     * transfer from competing with the savers for the storage.
+     */
+    int transferKbPerSecond = 4096;
+
+    /**
+     * Reads the settings from {@code prefs}, falling back to the defaults for missing keys.
+     */
+    static CaptureConfig fromPreferences(SharedPreferences prefs) {
+        CaptureConfig config = new CaptureConfig();
+        if (prefs == null) {
+            return config;
+        }
+        config.burstMode = prefs.getBoolean(KEY_BURST_MODE, config.burstMode);
+        config.stopPreviewForStills =
+                prefs.getBoolean(KEY_STOP_PREVIEW_FOR_STILLS, config.stopPreviewForStills);
+        config.zslMode = prefs.getBoolean(KEY_ZSL_MODE, config.zslMode);
+        config.zslBufferDepth = prefs.getInt(KEY_ZSL_BUFFER_DEPTH, config.zslBufferDepth);
+        config.zslSettleTimeMs = prefs.getInt(KEY_ZSL_SETTLE_TIME_MS, config.zslSettleTimeMs);
+        String ladder = prefs.getString(KEY_EXPOSURE_LADDER, "");
+        try {
+            config.exposureLadder = parseExposureLadder(ladder);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "ignoring the exposure ladder \"" + ladder + "\"", e);
+        }
+        config.rawMode = prefs.getBoolean(KEY_RAW_MODE, config.rawMode);
+        config.dngWriterThreads = prefs.getInt(KEY_DNG_WRITER_THREADS, config.dngWriterThreads);
+        config.yuvMode = prefs.getBoolean(KEY_YUV_MODE, config.yuvMode);
+        config.imageQueueDepth = prefs.getInt(KEY_IMAGE_QUEUE_DEPTH, config.imageQueueDepth);
+        config.saverThreads = prefs.getInt(KEY_SAVER_THREADS, config.saverThreads);
+        config.saverQueueCapacity =
+                prefs.getInt(KEY_SAVER_QUEUE_CAPACITY, config.saverQueueCapacity);
+        config.sessionPack = prefs.getBoolean(KEY_SESSION_PACK, config.sessionPack);
+        String durability = prefs.getString(KEY_DURABILITY, config.durability.name());
+        try {
+            config.durability = GroupCommitter.Mode.parse(durability);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "ignoring the durability \"" + durability + "\"", e);
+        }
+        config.groupCommitFrames =
+                prefs.getInt(KEY_GROUP_COMMIT_FRAMES, config.groupCommitFrames);
+        config.groupCommitIntervalMs =
+                prefs.getInt(KEY_GROUP_COMMIT_INTERVAL_MS, config.groupCommitIntervalMs);
+        config.sessionJournal = prefs.getBoolean(KEY_SESSION_JOURNAL, config.sessionJournal);
+        config.storageReserveMb = prefs.getInt(KEY_STORAGE_RESERVE_MB, config.storageReserveMb);
+        config.storageWarningShots =
+                prefs.getInt(KEY_STORAGE_WARNING_SHOTS, config.storageWarningShots);
+        String[] hosts = parseHosts(prefs.getString(KEY_LIGHTSTAGE_HOSTS, ""));
+        if (hosts.length > 0) {
+            config.lightstageHosts = hosts;
+        }
+        config.controlConnectTimeoutMs =
+                prefs.getInt(KEY_CONTROL_CONNECT_TIMEOUT_MS, config.controlConnectTimeoutMs);
+        config.controlIoTimeoutMs =
+                prefs.getInt(KEY_CONTROL_IO_TIMEOUT_MS, config.controlIoTimeoutMs);
+        config.controlKeepAliveMs =
+                prefs.getInt(KEY_CONTROL_KEEP_ALIVE_MS, config.controlKeepAliveMs);
+        config.persistentControl =
+                prefs.getBoolean(KEY_PERSISTENT_CONTROL, config.persistentControl);
+        config.metadataLog = prefs.getBoolean(KEY_METADATA_LOG, config.metadataLog);
+        String checksum = prefs.getString(KEY_CHECKSUM, "none");
+        try {
+            config.checksum = parseChecksum(checksum);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "ignoring the checksum \"" + checksum + "\"", e);
+        }
+        config.streamFrames = prefs.getBoolean(KEY_STREAM_FRAMES, config.streamFrames);
+        config.transferPort = prefs.getInt(KEY_TRANSFER_PORT, config.transferPort);
+        config.transferKbPerSecond =
+                prefs.getInt(KEY_TRANSFER_KB_PER_SECOND, config.transferKbPerSecond);
+        return config;
+    }
+
+    /**
+     * Parses a checksum algorithm, {@code "none"} meaning none.
+     *
+     * @throws IllegalArgumentException if the algorithm isn't available
+     */
+    static String parseChecksum(String checksum) {
+        String trimmed = checksum.trim();
+        if (trimmed.isEmpty() || trimmed.equalsIgnoreCase("none")) {
+            return null;
+        }
+        return FrameChecksum.create(trimmed).getAlgorithm();
+    }
+
+    /**
+     * Parses a comma separated list of host names or addresses, skipping empty entries.
+     */
+    static String[] parseHosts(String hosts) {
+        List<String> parsed = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            if (!host.trim().isEmpty()) {
+                parsed.add(host.trim());
+            }
+        }
+        return parsed.toArray(new String[parsed.size()]);
+    }
+
+    /**
+     * Parses a comma separated list of exposure times in seconds.
+     *
+     * @throws NumberFormatException if an entry isn't a positive number
+     */
+    static float[] parseExposureLadder(String ladder) {
+        String trimmed = ladder.trim();
+        if (trimmed.isEmpty()) {
+            return new float[0];
+        }
+        String[] entries = trimmed.split(",");
+        float[] exposures = new float[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            exposures[i] = Float.parseFloat(entries[i].trim());
+            if (!(exposures[i] > 0) || Float.isInfinite(exposures[i])) {
+                throw new NumberFormatException("exposure time must be positive: " + entries[i]);
+            }
+        }
+        return exposures;
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+/**
+ * The state machine of a still capture: it waits for the focus lock and the exposure to
+ * converge, then asks its {@link Listener} to take the picture. It is fed the AF and AE states of
+ * the capture results, so it doesn't depend on a camera and can be driven by plain JVM tests.
+ * Every phase is timed in {@link CaptureTimings}.
+ */
+class CaptureEngine {
+
+    /**
+     * Camera state: Showing camera preview.
+     */
+    static final int STATE_PREVIEW = 0;
+
+    /**
+     * Camera state: Waiting for the focus to be locked.
+     */
+    static final int STATE_WAITING_LOCK = 1;
+
+    /**
+     * Camera state: Waiting for the exposure to be precapture state.
+     */
+    static final int STATE_WAITING_PRECAPTURE = 2;
+
+    /**
+     * Camera state: Waiting for the exposure state to be something other than precapture.
+     */
+    static final int STATE_WAITING_NON_PRECAPTURE = 3;
+
+    /**
+     * Camera state: Picture was taken.
+     */
+    static final int STATE_PICTURE_TAKEN = 4;
+
+    /**
+     * Camera state: Waiting for the focus to be locked for the shots to come, without taking a
+     * picture.
+     */
+    static final int STATE_WAITING_PRIMING_LOCK = 5;
+
+    /**
+     * The actions the state machine asks the camera for.
+     */
+    interface Listener {
+
+        /**
+         * Start the precapture sequence. The engine is already waiting for it.
+         */
+        void onRunPrecapture();
+
+        /**
+         * Take the still picture.
+         */
+        void onCaptureStill();
+
+        /**
+         * The focus locked after {@link #primeFocus()}; the engine is back in the preview state.
+         */
+        void onFocusLocked();
+
+    }
+
+    private final Listener mListener;
+
+    private final CaptureTimings mTimings;
+
+    private int mState = STATE_PREVIEW;
+
+    /**
+     * Start time of the phase the engine is waiting in.
+     */
+    private long mPhaseStartNs;
+
+    CaptureEngine(Listener listener, CaptureTimings timings) {
+        mListener = listener;
+        mTimings = timings;
+    }
+
+    CaptureTimings getTimings() {
+        return mTimings;
+    }
+
+    synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Starts waiting for the focus to be locked.
+     */
+    synchronized void lockFocus() {
+        mState = STATE_WAITING_LOCK;
+        mPhaseStartNs = mTimings.now();
+    }
+
+    /**
+     * Starts waiting for the focus to be locked ahead of a session's shots. Unlike
+     * {@link #lockFocus()} no picture is taken once it is locked.
+     */
+    synchronized void primeFocus() {
+        mState = STATE_WAITING_PRIMING_LOCK;
+        mPhaseStartNs = mTimings.now();
+    }
+
+    /**
+     * Starts waiting for the exposure while the focus is already locked.
+     */
+    synchronized void waitForExposure() {
+        mState = STATE_WAITING_NON_PRECAPTURE;
+        mPhaseStartNs = mTimings.now();
+    }
+
+    /**
+     * Goes back to the preview state, e.g. after the still was taken.
+     */
+    synchronized void reset() {
+        mState = STATE_PREVIEW;
+    }
+
+    /**
+     * Processes the AF and AE states of a partial or total capture result. Either can be
+     * {@code null} on devices that don't report them.
+     */
+    void onResult(Integer afState, Integer aeState) {
+        boolean runPrecapture = false;
+        boolean captureStill = false;
+        boolean focusLocked = false;
+        synchronized (this) {
+            switch (mState) {
+                case STATE_PREVIEW: {
+                    // We have nothing to do when the camera preview is working normally.
+                    break;
+                }
+                case STATE_WAITING_LOCK: {
+                    if (afState == null) {
+                        mTimings.endPhase(CaptureTimings.Phase.AF_LOCK, mPhaseStartNs);
+                        mState = STATE_PICTURE_TAKEN;
+                        captureStill = true;
+                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
+                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+                        mTimings.endPhase(CaptureTimings.Phase.AF_LOCK, mPhaseStartNs);
+                        // CONTROL_AE_STATE can be null on some devices
+                        if (aeState == null ||
+                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+                            mState = STATE_PICTURE_TAKEN;
+                            captureStill = true;
+                        } else {
+                            mState = STATE_WAITING_PRECAPTURE;
+                            mPhaseStartNs = mTimings.now();
+                            runPrecapture = true;
+                        }
+                    }
+                    break;
+                }
+                case STATE_WAITING_PRIMING_LOCK: {
+                    if (afState == null ||
+                            CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
+                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+                        mTimings.endPhase(CaptureTimings.Phase.AF_LOCK, mPhaseStartNs);
+                        mState = STATE_PREVIEW;
+                        focusLocked = true;
+                    }
+                    break;
+                }
+                case STATE_WAITING_PRECAPTURE: {
+                    // CONTROL_AE_STATE can be null on some devices
+                    if (aeState == null ||
+                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
+                            aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+                        mState = STATE_WAITING_NON_PRECAPTURE;
+                    }
+                    break;
+                }
+                case STATE_WAITING_NON_PRECAPTURE: {
+                    // CONTROL_AE_STATE can be null on some devices
+                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+                        mTimings.endPhase(CaptureTimings.Phase.PRECAPTURE, mPhaseStartNs);
+                        mState = STATE_PICTURE_TAKEN;
+                        captureStill = true;
+                    }
+                    break;
+                }
+            }
+        }
+        // The listener talks to the camera, so it is called outside of the lock.
+        if (runPrecapture) {
+            mListener.onRunPrecapture();
+        } else if (captureStill) {
+            mListener.onCaptureStill();
+        } else if (focusLocked) {
+            mListener.onFocusLocked();
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A log of the capture results of the frames of a session, so it can be told afterwards which
+ * exposure, sensitivity and focus every frame really got. The records are collected in a buffer
+ * that is allocated once and written out whenever it fills up, so logging a frame allocates
+ * nothing.
+ *
+ * <p>The log starts with the {@link #MAGIC}, {@link #VERSION} and {@link #RECORD_BYTES} ints,
+ * followed by fixed size records: the shot and the bracket as ints, the frame number, the sensor
+ * timestamp, the requested and the actual exposure time and the frame duration in nanoseconds as
+ * longs, the sensitivity as an int, the focus distance in diopters and the aperture as floats, the
+ * lens, AF and AE states as bytes and a padding byte. All numbers are big endian; a value the
+ * camera didn't report is -1. {@link #main} exports a log as CSV.</p>
+ */
+class CaptureMetadataLog implements Closeable {
+
+    /**
+     * "LSMD" in ASCII.
+     */
+    static final int MAGIC = 0x4c534d44;
+    static final int VERSION = 1;
+
+    static final String EXTENSION = ".meta";
+
+    static final int HEADER_BYTES = 12;
+    static final int RECORD_BYTES = 64;
+
+    /**
+     * The number of records collected before they are written.
+     */
+    private static final int BUFFERED_RECORDS = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The capture result of one frame. Filled in by the caller and reused for every frame.
+     */
+    static final class Record {
+
+        int shot;
+        int bracket;
+        long frameNumber;
+        long timestampNs;
+        long requestedExposureNs;
+        long exposureNs;
+        long frameDurationNs;
+        int sensitivity;
+        float focusDistance;
+        float aperture;
+        int lensState;
+        int afState;
+        int aeState;
+
+        /**
+         * Resets every value to "not reported".
+         */
+        void clear() {
+            shot = -1;
+            bracket = -1;
+            frameNumber = -1;
+            timestampNs = -1;
+            requestedExposureNs = -1;
+            exposureNs = -1;
+            frameDurationNs = -1;
+            sensitivity = -1;
+            focusDistance = -1;
+            aperture = -1;
+            lensState = -1;
+            afState = -1;
+            aeState = -1;
+        }
+
+        void write(ByteBuffer out) {
+            out.putInt(shot).putInt(bracket).putLong(frameNumber).putLong(timestampNs)
+                    .putLong(requestedExposureNs).putLong(exposureNs).putLong(frameDurationNs)
+                    .putInt(sensitivity).putFloat(focusDistance).putFloat(aperture)
+                    .put((byte) lensState).put((byte) afState).put((byte) aeState).put((byte) 0);
+        }
+
+        void read(ByteBuffer in) {
+            shot = in.getInt();
+            bracket = in.getInt();
+            frameNumber = in.getLong();
+            timestampNs = in.getLong();
+            requestedExposureNs = in.getLong();
+            exposureNs = in.getLong();
+            frameDurationNs = in.getLong();
+            sensitivity = in.getInt();
+            focusDistance = in.getFloat();
+            aperture = in.getFloat();
+            lensState = in.get();
+            afState = in.get();
+            aeState = in.get();
+            in.get();
+        }
+
+    }
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(BUFFERED_RECORDS * RECORD_BYTES);
+
+    /**
+     * Opens the log of {@code session} in {@code dir}, appending to the log of a resumed session.
+     */
+    CaptureMetadataLog(File dir, String session) throws IOException {
+        mFile = new File(dir, session + EXTENSION);
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        long size = mChannel.size();
+        if (size < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).flip();
+            mChannel.truncate(0);
+            SessionPack.writeFully(mChannel, header);
+        } else {
+            // drop a record torn by a crash
+            mChannel.truncate(size - (size - HEADER_BYTES) % RECORD_BYTES);
+        }
+        mChannel.position(mChannel.size());
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Appends {@code record}.
+     */
+    synchronized void append(Record record) throws IOException {
+        record.write(mBuffer);
+        if (!mBuffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the collected records.
+     */
+    synchronized void flush() throws IOException {
+        mBuffer.flip();
+        SessionPack.writeFully(mChannel, mBuffer);
+        mBuffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Writes the records of the log {@code file} as CSV with a header line.
+     */
+    static void exportCsv(File file, Writer out) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        PrintWriter csv = new PrintWriter(out);
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC
+                    || header.getInt() != VERSION || header.getInt() != RECORD_BYTES) {
+                throw new IOException("not a capture metadata log: " + file);
+            }
+            csv.println("shot,bracket,frame_number,timestamp_ns,requested_exposure_ns,"
+                    + "exposure_ns,frame_duration_ns,sensitivity,focus_distance,aperture,"
+                    + "lens_state,af_state,ae_state");
+            ByteBuffer records = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_BYTES);
+            Record record = new Record();
+            while (channel.read(records) >= 0 || records.position() > 0) {
+                records.flip();
+                if (records.remaining() < RECORD_BYTES) {
+                    // a torn record at the end
+                    break;
+                }
+                while (records.remaining() >= RECORD_BYTES) {
+                    record.read(records);
+                    csv.println(record.shot + "," + record.bracket + "," + record.frameNumber
+                            + "," + record.timestampNs + "," + record.requestedExposureNs + ","
+                            + record.exposureNs + "," + record.frameDurationNs + ","
+                            + record.sensitivity + "," + record.focusDistance + ","
+                            + record.aperture + "," + record.lensState + "," + record.afState
+                            + "," + record.aeState);
+                }
+                records.compact();
+            }
+        } finally {
+            csv.flush();
+            raf.close();
+        }
+    }
+
+    /**
+     * Exports a log pulled off the phone as CSV to standard output:
+     * {@code java CaptureMetadataLog <session>.meta > <session>.csv}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: CaptureMetadataLog <session>" + EXTENSION);
+            System.exit(2);
+        }
+        exportCsv(new File(args[0]), new OutputStreamWriter(System.out, UTF_8));
+    }
+
+}
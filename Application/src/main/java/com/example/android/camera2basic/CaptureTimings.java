@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Records where the time of the shot cycle goes: the wait for the focus lock, the wait for the
+ * exposure to converge, the time from submitting a still to its image being available and the
+ * time from the image being available to it being saved.
+ */
+class CaptureTimings {
+
+    /**
+     * The timed phases of the shot cycle.
+     */
+    enum Phase {
+        /**
+         * From starting the focus lock until it is locked.
+         */
+        AF_LOCK,
+        /**
+         * From waiting for the exposure (precapture) until the still is submitted.
+         */
+        PRECAPTURE,
+        /**
+         * From submitting a still until its image is available.
+         */
+        CAPTURE_TO_IMAGE,
+        /**
+         * From an image being available until it is saved.
+         */
+        IMAGE_TO_SAVED
+    }
+
+    /**
+     * A source of monotonic time in nanoseconds.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    /**
+     * The time of an image that was never recorded as available; {@link #imageSaved(long)}
+     * ignores it.
+     */
+    static final long NOT_AVAILABLE = Long.MIN_VALUE;
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+    };
+
+    private final Clock mClock;
+
+    private final long[] mCount = new long[Phase.values().length];
+    private final long[] mTotalNs = new long[Phase.values().length];
+    private final long[] mMinNs = new long[Phase.values().length];
+    private final long[] mMaxNs = new long[Phase.values().length];
+
+    /**
+     * Start times of the stills whose images aren't available yet, in submission order.
+     */
+    private final ArrayDeque<Long> mSubmitted = new ArrayDeque<>();
+
+    CaptureTimings(Clock clock) {
+        mClock = clock;
+        reset();
+    }
+
+    long now() {
+        return mClock.nanoTime();
+    }
+
+    /**
+     * Records that a phase which started at {@code startNs} ended now.
+     */
+    void endPhase(Phase phase, long startNs) {
+        record(phase, mClock.nanoTime() - startNs);
+    }
+
+    synchronized void record(Phase phase, long durationNs) {
+        int i = phase.ordinal();
+        mCount[i]++;
+        mTotalNs[i] += durationNs;
+        mMinNs[i] = Math.min(mMinNs[i], durationNs);
+        mMaxNs[i] = Math.max(mMaxNs[i], durationNs);
+    }
+
+    /**
+     * Records that {@code count} stills have been submitted.
+     */
+    synchronized void stillsSubmitted(int count) {
+        long now = mClock.nanoTime();
+        for (int i = 0; i < count; i++) {
+            mSubmitted.addLast(now);
+        }
+    }
+
+    /**
+     * Records that the image of the oldest submitted still is available. Images arrive in the
+     * order of their stills, but the savers finish them in any order, so the time is kept with
+     * the image, e.g. in {@link LightstageShot.Frame#imageAvailableNs}.
+     *
+     * @return The time to hand to {@link #imageSaved(long)} once the image is saved
+     */
+    synchronized long imageAvailable() {
+        long now = mClock.nanoTime();
+        Long submitted = mSubmitted.pollFirst();
+        if (submitted != null) {
+            record(Phase.CAPTURE_TO_IMAGE, now - submitted);
+        }
+        return now;
+    }
+
+    /**
+     * Records that the image that became available at {@code availableNs} has been saved.
+     */
+    void imageSaved(long availableNs) {
+        if (availableNs != NOT_AVAILABLE) {
+            record(Phase.IMAGE_TO_SAVED, mClock.nanoTime() - availableNs);
+        }
+    }
+
+    synchronized long count(Phase phase) {
+        return mCount[phase.ordinal()];
+    }
+
+    synchronized long totalNanos(Phase phase) {
+        return mTotalNs[phase.ordinal()];
+    }
+
+    synchronized long minNanos(Phase phase) {
+        return mCount[phase.ordinal()] == 0 ? 0 : mMinNs[phase.ordinal()];
+    }
+
+    synchronized long maxNanos(Phase phase) {
+        return mMaxNs[phase.ordinal()];
+    }
+
+    synchronized long meanNanos(Phase phase) {
+        int i = phase.ordinal();
+        return mCount[i] == 0 ? 0 : mTotalNs[i] / mCount[i];
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < mCount.length; i++) {
+            mCount[i] = 0;
+            mTotalNs[i] = 0;
+            mMinNs[i] = Long.MAX_VALUE;
+            mMaxNs[i] = 0;
+        }
+        mSubmitted.clear();
+    }
+
+    /**
+     * Returns one line per phase with its count and its mean, min and max in milliseconds.
+     */
+    synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format(Locale.US, "%s: n=%d mean=%.2fms min=%.2fms max=%.2fms%n",
+                    phase, count(phase), meanNanos(phase) / 1e6, minNanos(phase) / 1e6,
+                    maxNanos(phase) / 1e6));
+        }
+        return sb.toString();
+    }
+
+}
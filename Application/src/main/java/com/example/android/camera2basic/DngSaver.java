@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
+import android.media.Image;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a RAW_SENSOR {@link Image} and its {@link CaptureResult} as a DNG into the RAW file of
+ * its {@link LightstageShot.Frame}. A DNG is 40+ MB, so this runs on a writer pool and never on
+ * the camera callback thread.
+ */
+class DngSaver implements Runnable {
+
+    private static final String TAG = "DngSaver";
+
+    private final CameraCharacteristics mCharacteristics;
+    private final CaptureResult mResult;
+    private final Image mImage;
+    /**
+     * Closes {@link #mImage} once the DNG is written.
+     */
+    private final AutoCloseable mImageHandle;
+    private final LightstageShot.Frame mFrame;
+    private final ImageSaver.Callback mCallback;
+
+    DngSaver(CameraCharacteristics characteristics, CaptureResult result, Image image,
+             AutoCloseable imageHandle, LightstageShot.Frame frame,
+             ImageSaver.Callback callback) {
+        mCharacteristics = characteristics;
+        mResult = result;
+        mImage = image;
+        mImageHandle = imageHandle;
+        mFrame = frame;
+        mCallback = callback;
+    }
+
+    @Override
+    public void run() {
+        DngCreator dngCreator = new DngCreator(mCharacteristics, mResult);
+        GroupCommitter.Target target = null;
+        IOException failure = null;
+        long bytes = 0;
+        FrameChecksum checksum = mFrame.shot.newChecksum();
+        try {
+            FileOutputStream file = new FileOutputStream(mFrame.rawFile);
+            target = GroupCommitter.fileTarget(file.getChannel());
+            // the checksum sees the buffered chunks on their way into the file
+            OutputStream output = new BufferedOutputStream(
+                    null != checksum ? checksum.wrap(file) : file);
+            dngCreator.writeImage(output, mImage);
+            // the file is closed by the committer once it is durable
+            output.flush();
+            bytes = file.getChannel().size();
+            if (null != checksum) {
+                mFrame.setChecksum(mFrame.rawFile, bytes, checksum);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.d(TAG, "something went wrong during DNG save");
+            failure = e;
+        } finally {
+            try {
+                mImageHandle.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            dngCreator.close();
+        }
+        mFrame.shot.onFrameWritten(mFrame, target, bytes, failure, mCallback);
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Computes the checksum of a frame from the bytes the savers write, so verifying a frame never
+ * takes a second pass over the file. Either a {@code "crc32"} or {@code "adler32"} checksum,
+ * stored as 4 big endian bytes, or any {@link MessageDigest} algorithm, e.g. {@code "SHA-256"}.
+ */
+abstract class FrameChecksum {
+
+    /**
+     * The size of the scratch array direct buffers are fed to a {@link Checksum} through.
+     */
+    private static final int SCRATCH_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_BYTES];
+        }
+    };
+
+    private final String mAlgorithm;
+
+    private FrameChecksum(String algorithm) {
+        mAlgorithm = algorithm;
+    }
+
+    /**
+     * Creates a checksum of {@code algorithm}.
+     *
+     * @throws IllegalArgumentException if the algorithm isn't available
+     */
+    static FrameChecksum create(String algorithm) {
+        String name = algorithm.trim().toLowerCase(Locale.US);
+        if (name.equals("crc32")) {
+            return new Zip(name, new CRC32());
+        } else if (name.equals("adler32")) {
+            return new Zip(name, new Adler32());
+        }
+        try {
+            return new Digest(name, MessageDigest.getInstance(algorithm.trim()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown checksum: " + algorithm, e);
+        }
+    }
+
+    String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * Adds the remaining bytes of {@code buffers}, without consuming them.
+     */
+    void update(ByteBuffer... buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            } else {
+                updateDirect(buffer.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Adds {@code length} bytes of {@code bytes}.
+     */
+    abstract void update(byte[] bytes, int offset, int length);
+
+    /**
+     * Adds and consumes the remaining bytes of a direct buffer.
+     */
+    void updateDirect(ByteBuffer buffer) {
+        byte[] scratch = SCRATCH.get();
+        while (buffer.hasRemaining()) {
+            int length = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, length);
+            update(scratch, 0, length);
+        }
+    }
+
+    /**
+     * Returns the checksum of the bytes added so far.
+     */
+    abstract byte[] value();
+
+    /**
+     * Returns a stream that adds the bytes written through it.
+     */
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                update(bytes, offset, length);
+            }
+
+        };
+    }
+
+    /**
+     * Formats a checksum as lower case hex digits.
+     */
+    static String toHex(byte[] checksum) {
+        StringBuilder hex = new StringBuilder(checksum.length * 2);
+        for (byte b : checksum) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static final class Zip extends FrameChecksum {
+
+        private final Checksum mChecksum;
+
+        Zip(String algorithm, Checksum checksum) {
+            super(algorithm);
+            mChecksum = checksum;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            mChecksum.update(bytes, offset, length);
+        }
+
+        @Override
+        byte[] value() {
+            return ByteBuffer.allocate(4).putInt((int) mChecksum.getValue()).array();
+        }
+
+    }
+
+    private static final class Digest extends FrameChecksum {
+
+        private final MessageDigest mDigest;
+
+        Digest(String algorithm, MessageDigest digest) {
+            super(algorithm);
+            mDigest = digest;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            mDigest.update(bytes, offset, length);
+        }
+
+        @Override
+        void updateDirect(ByteBuffer buffer) {
+            // a digest reads direct buffers itself
+            mDigest.update(buffer);
+        }
+
+        @Override
+        byte[] value() {
+            return mDigest.digest();
+        }
+
+    }
+
+}
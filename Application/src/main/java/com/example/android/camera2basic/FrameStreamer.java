@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the saved frames of a session to the lightstage host over a transfer socket of its
+ * own, while the session is still being shot, so they don't have to be pulled off the phone
+ * afterwards. The bytes go from the page cache straight into the socket with
+ * {@link FileChannel#transferTo}, paced by a {@link RateLimiter} on a low priority thread, so the
+ * transfer never competes with the capture for the storage or the CPU.
+ *
+ * <p>Every frame is sent as its name as a length prefixed UTF-8 string, its length as a long and
+ * its bytes. All numbers are big endian. The phone closes the socket once the session ended and
+ * every frame is sent. Frames are only ever read from storage, so if the host can't be reached
+ * they are still there to be pulled by hand.</p>
+ */
+class FrameStreamer implements Closeable {
+
+    private static final String TAG = "FrameStreamer";
+
+    static final int TRANSFER_PORT = 50009;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    /**
+     * The bytes sent per {@link FileChannel#transferTo} call, so the pacing stays smooth.
+     */
+    static final int CHUNK_BYTES = 256 * 1024;
+
+    /**
+     * Paces a byte stream to a fixed rate.
+     */
+    static final class RateLimiter {
+
+        private final long mBytesPerSecond;
+        private final CaptureTimings.Clock mClock;
+        private long mNextNs;
+
+        /**
+         * @param bytesPerSecond The rate, or 0 for no limit
+         */
+        RateLimiter(long bytesPerSecond, CaptureTimings.Clock clock) {
+            mBytesPerSecond = bytesPerSecond;
+            mClock = clock;
+            mNextNs = clock.nanoTime();
+        }
+
+        /**
+         * Reserves the time to send {@code bytes}.
+         *
+         * @return How long to wait before sending them, in nanoseconds
+         */
+        synchronized long reserve(long bytes) {
+            if (mBytesPerSecond <= 0) {
+                return 0;
+            }
+            long now = mClock.nanoTime();
+            // an idle stream doesn't save up for a burst
+            long start = Math.max(now, mNextNs);
+            mNextNs = start + bytes * 1000000000L / mBytesPerSecond;
+            return start - now;
+        }
+
+    }
+
+    /**
+     * A frame waiting to be sent: a region of a frame file or a session pack.
+     */
+    private static final class Transfer {
+
+        final File file;
+        final String name;
+        final long offset;
+        final long length;
+
+        Transfer(File file, String name, long offset, long length) {
+            this.file = file;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * Queued after the last frame of the session.
+     */
+    private static final Transfer FINISHED = new Transfer(null, null, 0, 0);
+
+    private final String mHost;
+    private final int mPort;
+    private final RateLimiter mRateLimiter;
+    private final LinkedBlockingQueue<Transfer> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mThread;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(2 + 0xffff + 8);
+
+    private volatile boolean mClosed;
+    private SocketChannel mSocket;
+    private File mOpenFile;
+    private FileChannel mOpenChannel;
+    private int mFramesSent;
+    private long mBytesSent;
+
+    /**
+     * @param host           The host receiving the frames
+     * @param port           The port of its transfer socket
+     * @param bytesPerSecond The rate the frames are sent at, or 0 for no limit
+     * @param clock          The clock pacing the transfer
+     */
+    FrameStreamer(String host, int port, long bytesPerSecond, CaptureTimings.Clock clock) {
+        mHost = host;
+        mPort = port;
+        mRateLimiter = new RateLimiter(bytesPerSecond, clock);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stream();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        // the camera, the savers and the lightstage commands come first
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Queues a saved frame file.
+     */
+    void offer(File file) {
+        mQueue.add(new Transfer(file, file.getName(), 0, file.length()));
+    }
+
+    /**
+     * Queues a frame appended to a session pack.
+     */
+    void offer(File pack, SessionPack.Entry entry) {
+        mQueue.add(new Transfer(pack, entry.name, entry.offset, entry.length));
+    }
+
+    /**
+     * Closes the transfer socket once the queued frames are sent.
+     */
+    void finish() {
+        mQueue.add(FINISHED);
+    }
+
+    /**
+     * Waits until the streamer finished, or {@code timeoutMs} passed.
+     *
+     * @return Whether it finished
+     */
+    boolean awaitFinished(long timeoutMs) throws InterruptedException {
+        mThread.join(timeoutMs);
+        return !mThread.isAlive();
+    }
+
+    /**
+     * Returns the number of frames sent so far.
+     */
+    synchronized int framesSent() {
+        return mFramesSent;
+    }
+
+    /**
+     * Returns the number of frame bytes sent so far.
+     */
+    synchronized long bytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Stops right away, dropping the frames that weren't sent.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    private void stream() {
+        try {
+            while (!mClosed) {
+                Transfer transfer = mQueue.take();
+                if (transfer == FINISHED) {
+                    break;
+                }
+                try {
+                    send(transfer);
+                } catch (IOException e) {
+                    if (mClosed) {
+                        break;
+                    }
+                    Log.e(TAG, "couldn't send " + transfer.name + " to " + mHost, e);
+                    closeSocket();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            closeSocket();
+            closeFile();
+            Log.d(TAG, framesSent() + " frames sent, " + mQueue.size() + " left");
+        }
+    }
+
+    private void send(Transfer transfer) throws IOException, InterruptedException {
+        if (mSocket == null) {
+            mSocket = SocketChannel.open();
+            try {
+                mSocket.socket().connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                closeSocket();
+                throw e;
+            }
+        }
+        FileChannel file = openFile(transfer.file);
+        byte[] name = transfer.name.getBytes(UTF_8);
+        mHeader.clear();
+        mHeader.putShort((short) name.length).put(name).putLong(transfer.length).flip();
+        while (mHeader.hasRemaining()) {
+            mSocket.write(mHeader);
+        }
+        long position = transfer.offset;
+        long end = transfer.offset + transfer.length;
+        while (position < end) {
+            long chunk = Math.min(CHUNK_BYTES, end - position);
+            long waitNs = mRateLimiter.reserve(chunk);
+            if (waitNs > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNs);
+            }
+            long sent = file.transferTo(position, chunk, mSocket);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("frame truncated: " + transfer.name);
+            }
+            position += sent;
+        }
+        synchronized (this) {
+            mFramesSent++;
+            mBytesSent += transfer.length;
+        }
+    }
+
+    /**
+     * Returns a channel of {@code file}, reusing the last one, so a session pack is opened once.
+     */
+    private FileChannel openFile(File file) throws IOException {
+        if (!file.equals(mOpenFile)) {
+            closeFile();
+            mOpenChannel = new RandomAccessFile(file, "r").getChannel();
+            mOpenFile = file;
+        }
+        return mOpenChannel;
+    }
+
+    private void closeFile() {
+        if (mOpenChannel != null) {
+            try {
+                mOpenChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mOpenChannel = null;
+            mOpenFile = null;
+        }
+    }
+
+    private void closeSocket() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSocket = null;
+        }
+    }
+
+}
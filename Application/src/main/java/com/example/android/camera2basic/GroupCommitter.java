@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes written frames durable before they are acknowledged, batching the syncs. A frame is
+ * handed over as a {@link Target} once its bytes are written; its {@link Listener} is called once
+ * the target has been synced to storage (or right away in {@link Mode#NONE}).
+ *
+ * <p>In {@link Mode#GROUP} the written frames collect in a group that is synced in one go once it
+ * holds {@code groupFrames} frames, once the oldest of them waited {@code groupIntervalMs}, or
+ * when {@link #flush()} is called. Frames sharing a target, like those of a session pack, cost a
+ * single sync per group.</p>
+ */
+class GroupCommitter implements Closeable {
+
+    enum Mode {
+        /**
+         * Frames are acknowledged as soon as they are written; a crash may lose them.
+         */
+        NONE,
+        /**
+         * Every frame is synced on its own before it is acknowledged.
+         */
+        PER_FRAME,
+        /**
+         * Frames are synced in groups and acknowledged with their group.
+         */
+        GROUP;
+
+        /**
+         * Parses {@code "none"}, {@code "per_frame"} or {@code "group"}.
+         *
+         * @throws IllegalArgumentException if {@code mode} is none of these
+         */
+        static Mode parse(String mode) {
+            return valueOf(mode.trim().toUpperCase(Locale.US));
+        }
+    }
+
+    /**
+     * Something frames are written into that can be synced to storage.
+     */
+    interface Target {
+
+        /**
+         * Flushes the written bytes to storage.
+         */
+        void sync() throws IOException;
+
+        /**
+         * Releases the target once it has been synced, e.g. closes its file.
+         */
+        void release() throws IOException;
+
+    }
+
+    /**
+     * Receives the outcome of a commit.
+     */
+    interface Listener {
+
+        /**
+         * @param failure The reason the frame couldn't be made durable, or {@code null}
+         */
+        void onDurable(IOException failure);
+
+    }
+
+    /**
+     * Acknowledges frames right away, without syncing.
+     */
+    static final GroupCommitter NO_SYNC = new GroupCommitter(Mode.NONE, 1, 0);
+
+    private static final class Pending {
+
+        final Target target;
+        final Listener listener;
+
+        Pending(Target target, Listener listener) {
+            this.target = target;
+            this.listener = listener;
+        }
+
+    }
+
+    private final Mode mMode;
+    private final int mGroupFrames;
+    private final long mGroupIntervalMs;
+
+    private List<Pending> mGroup = new ArrayList<>();
+    private ScheduledExecutorService mTimer;
+    private int mSyncs;
+    private int mGroups;
+
+    /**
+     * @param mode            How written frames are made durable
+     * @param groupFrames     The number of frames after which a group is synced
+     * @param groupIntervalMs The time after which a group is synced, in milliseconds
+     */
+    GroupCommitter(Mode mode, int groupFrames, long groupIntervalMs) {
+        mMode = mode;
+        mGroupFrames = Math.max(1, groupFrames);
+        mGroupIntervalMs = groupIntervalMs;
+    }
+
+    /**
+     * Returns a target that syncs {@code channel} and closes it once synced.
+     */
+    static Target fileTarget(final FileChannel channel) {
+        return new Target() {
+
+            @Override
+            public void sync() throws IOException {
+                channel.force(true);
+            }
+
+            @Override
+            public void release() throws IOException {
+                channel.close();
+            }
+
+        };
+    }
+
+    Mode getMode() {
+        return mMode;
+    }
+
+    long getGroupIntervalMs() {
+        return mGroupIntervalMs;
+    }
+
+    /**
+     * Hands over a written frame. {@code listener} is called once it is durable, possibly on
+     * another thread.
+     */
+    void commit(Target target, Listener listener) {
+        if (mMode != Mode.GROUP) {
+            List<Pending> single = new ArrayList<>(1);
+            single.add(new Pending(target, listener));
+            sync(single, mMode == Mode.PER_FRAME);
+            return;
+        }
+        List<Pending> full = null;
+        synchronized (this) {
+            mGroup.add(new Pending(target, listener));
+            if (mGroup.size() >= mGroupFrames) {
+                full = takeGroup();
+            } else if (mGroup.size() == 1 && mGroupIntervalMs > 0) {
+                scheduleFlush();
+            }
+        }
+        if (full != null) {
+            sync(full, true);
+        }
+    }
+
+    /**
+     * Syncs the current group now, e.g. because the lightstage waits for one of its frames.
+     */
+    void flush() {
+        List<Pending> group;
+        synchronized (this) {
+            group = takeGroup();
+        }
+        if (!group.isEmpty()) {
+            sync(group, true);
+        }
+    }
+
+    /**
+     * Returns the number of syncs so far.
+     */
+    synchronized int syncs() {
+        return mSyncs;
+    }
+
+    /**
+     * Returns the number of groups synced so far.
+     */
+    synchronized int groups() {
+        return mGroups;
+    }
+
+    /**
+     * Syncs the current group and stops the group timer.
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            if (mTimer != null) {
+                mTimer.shutdown();
+                mTimer = null;
+            }
+        }
+    }
+
+    private List<Pending> takeGroup() {
+        List<Pending> group = mGroup;
+        mGroup = new ArrayList<>();
+        return group;
+    }
+
+    private void scheduleFlush() {
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GroupCommit");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mGroupIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Syncs every distinct target of {@code group} once, releases them and notifies the
+     * listeners.
+     */
+    private void sync(List<Pending> group, boolean sync) {
+        Map<Target, IOException> failures = new IdentityHashMap<>();
+        int syncs = 0;
+        for (Pending pending : group) {
+            if (failures.containsKey(pending.target)) {
+                continue;
+            }
+            IOException failure = null;
+            if (sync) {
+                try {
+                    pending.target.sync();
+                    syncs++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failure = e;
+                }
+            }
+            failures.put(pending.target, failure);
+        }
+        for (Pending pending : group) {
+            try {
+                pending.target.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (failures.get(pending.target) == null) {
+                    failures.put(pending.target, e);
+                }
+            }
+        }
+        synchronized (this) {
+            mSyncs += syncs;
+            if (sync) {
+                mGroups++;
+            }
+        }
+        for (Pending pending : group) {
+            pending.listener.onDurable(failures.get(pending.target));
+        }
+    }
+
+}
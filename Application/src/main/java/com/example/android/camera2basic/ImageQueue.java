@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts for the images of an {@link android.media.ImageReader} with {@code maxImages}
+ * {@link #capacity()}: the images of the stills that have been submitted but not delivered yet,
+ * and the images that have been acquired but not closed yet. An {@code ImageReader} can't hand
+ * out more than {@code maxImages} images at once, so stills are only submitted once
+ * {@link #awaitCapacity} reserved room for all of their images. A shot with more images than the
+ * reader holds never fits: its last images would make {@code acquireNextImage} throw.
+ */
+class ImageQueue {
+
+    private final int mCapacity;
+
+    private int mReserved;
+    private int mAcquired;
+    private int mMaxAcquired;
+    private int mWaits;
+
+    /**
+     * @param capacity The {@code maxImages} of the reader
+     */
+    ImageQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns how many more images can be reserved right now without waiting.
+     */
+    synchronized int available() {
+        return Math.max(0, mCapacity - mReserved - mAcquired);
+    }
+
+    /**
+     * Returns how many shots of {@code images} images each could be reserved right now.
+     */
+    synchronized int shotsThatFit(int images) {
+        if (images > mCapacity) {
+            return 0;
+        }
+        return available() / images;
+    }
+
+    /**
+     * Waits until there is room for {@code images} more images and reserves it. A request for more
+     * images than the reader holds fails right away.
+     *
+     * @return Whether the room was reserved before {@code timeoutMs} passed
+     */
+    synchronized boolean awaitCapacity(int images, long timeoutMs) throws InterruptedException {
+        if (images > mCapacity) {
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        if (mReserved + mAcquired + images > mCapacity) {
+            mWaits++;
+        }
+        while (mReserved + mAcquired + images > mCapacity) {
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (leftMs <= 0) {
+                return false;
+            }
+            wait(leftMs);
+        }
+        mReserved += images;
+        return true;
+    }
+
+    /**
+     * Returns room reserved for images that will never be delivered, e.g. of a failed capture.
+     */
+    synchronized void cancel(int images) {
+        mReserved = Math.max(0, mReserved - images);
+        notifyAll();
+    }
+
+    /**
+     * Records that an image has been acquired from the reader.
+     *
+     * @param image The image, closed by the returned handle
+     * @return The handle to close instead of {@code image}, so the queue sees it closed
+     */
+    synchronized AutoCloseable onImageAcquired(final AutoCloseable image) {
+        if (mReserved > 0) {
+            mReserved--;
+        }
+        mAcquired++;
+        mMaxAcquired = Math.max(mMaxAcquired, mAcquired);
+        return new AutoCloseable() {
+
+            private boolean mClosed;
+
+            @Override
+            public void close() throws Exception {
+                synchronized (ImageQueue.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mClosed = true;
+                }
+                try {
+                    image.close();
+                } finally {
+                    synchronized (ImageQueue.this) {
+                        mAcquired--;
+                        ImageQueue.this.notifyAll();
+                    }
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Returns the number of images acquired and not closed yet.
+     */
+    synchronized int acquired() {
+        return mAcquired;
+    }
+
+    /**
+     * Returns the highest number of images that were acquired and not closed at the same time.
+     */
+    synchronized int maxAcquired() {
+        return mMaxAcquired;
+    }
+
+    /**
+     * Returns how many times {@link #awaitCapacity} had to wait for images to be closed.
+     */
+    synchronized int waits() {
+        return mWaits;
+    }
+
+    /**
+     * Drops all reservations, e.g. when the camera is closed with captures in flight.
+     */
+    synchronized void clear() {
+        mReserved = 0;
+        notifyAll();
+    }
+
+}
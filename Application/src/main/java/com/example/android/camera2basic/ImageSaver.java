@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves a JPEG image into the file of its {@link LightstageShot.Frame}. The image is only seen
+ * as its JPEG bytes and something to close, so the saver runs the same way for an
+ * {@link android.media.Image} and for a simulated frame.
+ */
+class ImageSaver implements Runnable {
+
+    private static final String TAG = "ImageSaver";
+
+    /**
+     * Receives the outcome of a save.
+     */
+    interface Callback {
+
+        /**
+         * The frame couldn't be saved. Its shot still ends with {@link #onShotSaved}.
+         */
+        void onSaveFailed(LightstageShot.Frame frame, IOException e);
+
+        /**
+         * The last frame of {@code shot} has been handled; {@link LightstageShot#hasFailed()}
+         * tells whether all of them were saved.
+         */
+        void onShotSaved(LightstageShot shot);
+
+    }
+
+    /**
+     * The JPEG image, closed once it is saved.
+     */
+    private final AutoCloseable mImage;
+    /**
+     * The JPEG bytes of {@link #mImage}.
+     */
+    private final ByteBuffer mJpeg;
+    /**
+     * The shot frame the image belongs to.
+     */
+    private final LightstageShot.Frame mFrame;
+    /**
+     * The file we save the image into.
+     */
+    private final File mFile;
+    /**
+     * Records the time it took to save the image.
+     */
+    private final CaptureTimings mTimings;
+    private final Callback mCallback;
+
+    ImageSaver(AutoCloseable image, ByteBuffer jpeg, LightstageShot.Frame frame,
+               CaptureTimings timings, Callback callback) {
+        mImage = image;
+        mJpeg = jpeg;
+        mFrame = frame;
+        mFile = frame.file;
+        mTimings = timings;
+        mCallback = callback;
+    }
+
+    @Override
+    public void run() {
+        // The JPEG is written straight from the image's direct buffer, without a heap copy
+        ByteBuffer buffer = mJpeg;
+        long bytes = buffer.remaining();
+        FrameChecksum checksum = mFrame.shot.newChecksum();
+        if (null != checksum) {
+            // summed up while the bytes are hot, so verifying never rereads the file
+            checksum.update(buffer);
+        }
+
+        GroupCommitter.Target target = null;
+        IOException failure = null;
+
+        try {
+            if (null != mFrame.shot.pack) {
+                mFrame.shot.pack.append(mFile.getName(), mFrame.shot.index, mFrame.bracket,
+                        buffer);
+                target = mFrame.shot.pack.syncTarget();
+            } else {
+                FileChannel output = new FileOutputStream(mFile).getChannel();
+                target = GroupCommitter.fileTarget(output);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.d(TAG, "something went wrong during file save");
+            failure = e;
+        } finally {
+            try {
+                mImage.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        mTimings.imageSaved(mFrame.imageAvailableNs);
+        if (null != checksum && null == failure) {
+            mFrame.setChecksum(mFile, bytes, checksum);
+        }
+        // the file is closed once the committer made it durable
+        mFrame.shot.onFrameWritten(mFrame, target, bytes - buffer.remaining(), failure,
+                mCallback);
+    }
+
+}
@@ -0,0 +1,1436 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs lightstage capture sessions: connects to the lightstage (and the PMD if there is one),
+ * performs the INIT handshake and then forwards the lightstage commands to its {@link Listener}
+ * until the lightstage ends the session. A persistent controller then keeps the connection open
+ * for the next session, and reconnects with an exponential backoff whenever the connection is
+ * lost, until it is stopped.
+ *
+ * <p>Both sockets are non-blocking and served by one {@link Selector} on the thread running the
+ * controller, so a PMD that is slow to answer never holds up the lightstage commands. The
+ * candidate lightstage hosts are resolved on threads of their own, so a slow lookup of one
+ * doesn't hold up the others, and every address is connected as soon as it resolved; the first
+ * lightstage to connect wins and the others are closed. The PMD on every candidate host is
+ * connected at the same time as its lightstage, and both connects and
+ * INIT handshakes share one deadline, the connect timeout plus the I/O timeout, so setting up a
+ * session takes as long as the slower of the two. After that every expected answer, partly
+ * received message and pending write has to complete within the I/O timeout: a lightstage that
+ * times out ends the session, a PMD that times out is dropped and the session continues without
+ * it.</p>
+ *
+ * <p>The protocol is one byte per message. The phone sends {@link #INIT} and the lightstage
+ * answers {@link #INIT} when it is ready. The lightstage then sends {@link #SHOOT} for every light
+ * and waits for {@link #FRAME_SAVED}, or {@link #ERROR} if the shot failed.
+ * {@link #EXPOSURE_LADDER} is followed by a count byte and that many exposure times as ints in
+ * microseconds. {@link #FRAME_COUNT} is followed by the number of shots the session is going to
+ * take as an int; the lightstage sends it right after the INIT handshake if it knows it. If not
+ * all of these shots fit into the storage, the phone answers {@link #FRAME_BUDGET} followed by
+ * the number of shots that fit as an int, 0 if the session can't be taken at all.
+ * If the phone recovered a session that was cut off, it sends {@link #RESUME} right after the
+ * INIT handshake, followed by the index of the last shot it saved as an int, and the lightstage
+ * continues with the shot after it.
+ * After {@link #CHECKSUMS} the phone follows every {@link #FRAME_SAVED} with the checksums of the
+ * files of the shot: a count byte and for every file its length as a long, the checksum length
+ * as a byte and the checksum bytes, so the lightstage can verify the transferred files without
+ * hashing them again. The count is 0 if checksums are disabled on the phone.
+ * {@link #END} ends the session.</p>
+ *
+ * <p>A lightstage that can keep several shots outstanding sends {@link #PROTOCOL_V2} after the
+ * INIT handshake. The phone answers {@link #PROTOCOL_V2} and from then on every message in both
+ * directions is a frame: the message byte, a sequence number as an int, the payload length as an
+ * unsigned short and the payload, which is what follows the message byte above. Every
+ * {@link #SHOOT} carries its own sequence number and the phone echoes it in the
+ * {@link #FRAME_SAVED} or {@link #ERROR} of that shot, whose order may differ from the order of
+ * the shots. {@link #FRAME_SAVED} always carries the checksums. Instead of waiting for every
+ * shot to be saved, the lightstage may send as many shots as the phone granted: the phone sends
+ * {@link #CREDIT} with the total number of shots of the session it can take so far as an int,
+ * every time the total grows. A lightstage that never offers v2 gets the lockstep protocol
+ * above.</p>
+ *
+ * <p>A lightstage that keeps the connection open after {@link #END} starts the next session by
+ * sending {@link #INIT} again, which the phone answers with {@link #INIT} once the PMD answered
+ * its INIT too. Over protocol v2 the phone sends {@link #KEEP_ALIVE} whenever it sent nothing for
+ * the keep-alive interval, and a lightstage that sends keep-alives itself is given up once it
+ * missed {@link #MISSED_KEEP_ALIVES} of them. A persistent controller doesn't limit how long the
+ * lightstage may take to answer the INIT handshake, as it may only answer once the next session
+ * is set up.</p>
+ */
+class LightstageController implements Runnable {
+
+    private static final String TAG = "LightstageController";
+
+    static final int LIGHTSTAGE_PORT = 50007;
+    static final int PMD_PORT = 50008;
+
+    static final int CONNECT_TIMEOUT_MS = 5000;
+    static final int IO_TIMEOUT_MS = 10000;
+    static final int KEEP_ALIVE_MS = 5000;
+
+    static final int RECONNECT_MIN_MS = 500;
+    static final int RECONNECT_MAX_MS = 30000;
+
+    /**
+     * How many keep-alives in a row a lightstage that sends them may miss.
+     */
+    static final int MISSED_KEEP_ALIVES = 3;
+
+    static final byte INIT = 1;
+    static final byte SHOOT = 2;
+    static final byte FRAME_SAVED = 3;
+    static final byte EXPOSURE_LADDER = 4;
+    static final byte FRAME_COUNT = 5;
+    static final byte RESUME = 6;
+    static final byte FRAME_BUDGET = 7;
+    static final byte CHECKSUMS = 8;
+    static final byte PROTOCOL_V2 = 9;
+    static final byte CREDIT = 10;
+    static final byte KEEP_ALIVE = 11;
+    static final byte END = -1;
+    static final byte ERROR = -2;
+
+    /**
+     * The message byte, sequence number and payload length of a v2 frame.
+     */
+    static final int FRAME_HEADER_BYTES = 7;
+
+    /**
+     * How often the phone checks for new credits while the lightstage has none left, or whether
+     * a parked lockstep shot fits.
+     */
+    private static final int CREDIT_POLL_MS = 20;
+
+    /**
+     * The camera side of the session. All methods are called on the thread running the
+     * controller.
+     */
+    interface Listener {
+
+        /**
+         * The lightstage (and PMD) answered the INIT handshake; the first shot follows.
+         *
+         * @return The index of the last saved shot of a session that is being resumed, or -1 to
+         * start from the first shot
+         */
+        int onSessionStarted();
+
+        /**
+         * The lightstage asks for a shot. {@link #frameSaved(int, List)} has to be called with
+         * {@code sequence} once it is saved.
+         *
+         * @param sequence The sequence number of the shot, -1 if the lightstage speaks the
+         *                 lockstep protocol
+         * @throws Exception if the shot can't be taken; the lightstage is sent {@link #ERROR}
+         */
+        void onShoot(int sequence) throws Exception;
+
+        /**
+         * Asked for the credits of a lightstage that speaks protocol v2, and before every shot of
+         * the lockstep protocol, which waits for at least 1 without blocking the controller.
+         *
+         * @return How many more shots the phone can take right now without waiting for the ones
+         * that are still being captured or saved
+         */
+        int shotCredits();
+
+        /**
+         * The lightstage replaced the exposure ladder.
+         *
+         * @param exposures The exposure times in seconds
+         * @throws IOException if the phone can't take shots with that many brackets; the
+         *                     connection is dropped
+         */
+        void onExposureLadder(float[] exposures) throws IOException;
+
+        /**
+         * The lightstage announced how many shots the session is going to take.
+         *
+         * @return The number of these shots the phone can take
+         */
+        int onFrameCount(int shots);
+
+        /**
+         * The lightstage ended the session.
+         */
+        void onSessionEnded();
+
+        /**
+         * A status message worth showing to the operator.
+         */
+        void onStatus(String message);
+
+    }
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int BUFFER_BYTES = 4096;
+
+    /**
+     * How far the output of a peer grows while the socket doesn't take it. A peer that falls
+     * further behind fails, so the controller reconnects instead of dropping messages.
+     */
+    private static final int MAX_OUTPUT_BYTES = 256 * BUFFER_BYTES;
+
+    /**
+     * One of the control sockets. Its input and deadlines are only touched by the controller
+     * thread; any thread may queue output.
+     */
+    private final class Peer {
+
+        final String name;
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        private final Object mOutLock = new Object();
+        private ByteBuffer mOut = ByteBuffer.allocate(BUFFER_BYTES);
+        /**
+         * Whether a message didn't fit into {@link #MAX_OUTPUT_BYTES}, which fails the peer.
+         */
+        private boolean mOverflowed;
+
+        /**
+         * Whether the connect finished right away, as it may on the loopback interface.
+         */
+        final boolean connectedRightAway;
+        volatile boolean connected;
+        /**
+         * Whether the peer answered the INIT handshake.
+         */
+        boolean ready;
+        /**
+         * When the connect and the INIT handshake have to be done.
+         */
+        final long setupDeadlineNs;
+        long readDeadlineNs = NO_DEADLINE;
+        long writeDeadlineNs = NO_DEADLINE;
+        long lastReadNs = System.nanoTime();
+        volatile long lastWriteNs = System.nanoTime();
+        /**
+         * While the candidates race, the PMD of a lightstage candidate and the other way round.
+         */
+        Peer partner;
+
+        Peer(String name, InetSocketAddress address, long setupDeadlineNs) throws IOException {
+            this.name = name;
+            this.address = address;
+            this.setupDeadlineNs = setupDeadlineNs;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                connectedRightAway = channel.connect(address);
+                key = channel.register(mSelector,
+                        connectedRightAway ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Queues {@code message} and writes as much of it as the socket takes right away, so an
+         * acknowledgement isn't held up while the controller thread is busy with a shot. If the
+         * output outgrew {@link #MAX_OUTPUT_BYTES} the next {@link #flush()} fails the peer.
+         */
+        void send(ByteBuffer message) {
+            synchronized (mOutLock) {
+                if (mOverflowed) {
+                    return;
+                }
+                if (mOut.remaining() < message.remaining() && !grow(message.remaining())) {
+                    Log.e(TAG, name + " output overflowed");
+                    mOverflowed = true;
+                    mSelector.wakeup();
+                    return;
+                }
+                mOut.put(message);
+                lastWriteNs = System.nanoTime();
+                if (connected) {
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        // the controller thread finds out on its next write
+                        e.printStackTrace();
+                    }
+                }
+            }
+            mSelector.wakeup();
+        }
+
+        /**
+         * Writes the queued output and waits for the socket to take the rest, if any.
+         */
+        void flush() throws IOException {
+            synchronized (mOutLock) {
+                if (mOverflowed) {
+                    throw new IOException(name + " fell " + mOut.position()
+                            + " bytes behind");
+                }
+                if (write()) {
+                    writeDeadlineNs = NO_DEADLINE;
+                    key.interestOps(SelectionKey.OP_READ);
+                } else {
+                    if (writeDeadlineNs == NO_DEADLINE) {
+                        writeDeadlineNs = deadline(mIoTimeoutMs);
+                    }
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        /**
+         * Makes room for {@code bytes} more output by doubling the buffer.
+         *
+         * @return Whether it fits into {@link #MAX_OUTPUT_BYTES}
+         */
+        private boolean grow(int bytes) {
+            int capacity = mOut.capacity();
+            while (capacity - mOut.position() < bytes) {
+                capacity *= 2;
+            }
+            if (capacity > MAX_OUTPUT_BYTES) {
+                return false;
+            }
+            ByteBuffer out = ByteBuffer.allocate(capacity);
+            mOut.flip();
+            out.put(mOut);
+            mOut = out;
+            return true;
+        }
+
+        /**
+         * @return Whether all of the queued output has been written
+         */
+        private boolean write() throws IOException {
+            mOut.flip();
+            try {
+                channel.write(mOut);
+                return !mOut.hasRemaining();
+            } finally {
+                mOut.compact();
+            }
+        }
+
+        long nextDeadlineNs() {
+            long deadline = Math.min(readDeadlineNs, writeDeadlineNs);
+            return connected ? deadline : Math.min(deadline, setupDeadlineNs);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+    private final String[] mHosts;
+    private final int mLightstagePort;
+    private final int mPmdPort;
+    private final int mConnectTimeoutMs;
+    private final int mIoTimeoutMs;
+    private final int mKeepAliveMs;
+    private final boolean mPersistent;
+    private final Listener mListener;
+
+    private volatile String mHost;
+    private volatile boolean mSendChecksums;
+    private volatile boolean mProtocolV2;
+    private volatile boolean mCreditsChanged;
+    /**
+     * Keeps the messages of other threads from being encoded for one protocol and sent after the
+     * switch to the other.
+     */
+    private final Object mSendLock = new Object();
+    /**
+     * The sequence numbers of the shots that haven't been acknowledged yet, oldest first.
+     */
+    private final ArrayDeque<Integer> mOutstanding = new ArrayDeque<>();
+    private int mShotsReceived;
+    private int mShotsGranted;
+    /**
+     * When the lockstep shot waiting for {@link Listener#shotCredits()} fails, or
+     * {@link #NO_DEADLINE} if no shot is parked.
+     */
+    private volatile long mParkedShotDeadlineNs = NO_DEADLINE;
+    private volatile boolean mStopped;
+    private volatile Selector mSelector;
+    private volatile Peer mLightstage;
+    private Peer mPmd;
+
+    /**
+     * The lightstage addresses the resolver threads found that haven't been connected yet.
+     */
+    private ConcurrentLinkedQueue<InetSocketAddress> mResolved;
+    private AtomicInteger mResolving;
+    /**
+     * The lightstage connects racing until one of them wins.
+     */
+    private final List<Peer> mCandidates = new ArrayList<>();
+    private final Set<InetAddress> mTried = new HashSet<>();
+    private long mSetupDeadlineNs;
+
+    private boolean mSessionStarted;
+    private boolean mPmdRecording;
+    private boolean mEnding;
+    /**
+     * Whether the connection is done with, cleanly or not.
+     */
+    private boolean mDone;
+    /**
+     * Whether a session ended and the connection waits for the next INIT.
+     */
+    private boolean mIdle;
+    private int mSessions;
+    /**
+     * Whether the lightstage sends keep-alives, so it can be given up once it stops.
+     */
+    private boolean mKeepsAlive;
+    /**
+     * Whether the lightstage was lost after it ended the session.
+     */
+    private boolean mLightstageClosed;
+
+    /**
+     * @param hosts          The candidate lightstage hosts, names or addresses; all of them are
+     *                        tried at once and the first to connect wins
+     * @param lightstagePort The port of the lightstage control socket
+     * @param pmdPort        The port of the PMD on the same host
+     * @param listener       The camera side of the session
+     */
+    LightstageController(String[] hosts, int lightstagePort, int pmdPort, Listener listener) {
+        this(hosts, lightstagePort, pmdPort, CONNECT_TIMEOUT_MS, IO_TIMEOUT_MS, listener);
+    }
+
+    /**
+     * @param connectTimeoutMs How long connecting may take, in milliseconds; the INIT handshake
+     *                         has to be done {@code ioTimeoutMs} later
+     * @param ioTimeoutMs      How long an expected answer, the rest of a partly received message
+     *                         or a pending write may take, in milliseconds
+     */
+    LightstageController(String[] hosts, int lightstagePort, int pmdPort, int connectTimeoutMs,
+                         int ioTimeoutMs, Listener listener) {
+        this(hosts, lightstagePort, pmdPort, connectTimeoutMs, ioTimeoutMs, KEEP_ALIVE_MS, false,
+                listener);
+    }
+
+    /**
+     * @param keepAliveMs How long the phone may send nothing over protocol v2 before it sends a
+     *                    keep-alive, in milliseconds, or 0 for no keep-alives
+     * @param persistent  Whether the connection is kept open for further sessions and
+     *                    reestablished when it is lost, until {@link #stop()} is called
+     */
+    LightstageController(String[] hosts, int lightstagePort, int pmdPort, int connectTimeoutMs,
+                         int ioTimeoutMs, int keepAliveMs, boolean persistent,
+                         Listener listener) {
+        mHosts = hosts;
+        mLightstagePort = lightstagePort;
+        mPmdPort = pmdPort;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mIoTimeoutMs = ioTimeoutMs;
+        mKeepAliveMs = keepAliveMs;
+        mPersistent = persistent;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the address of the lightstage host the controller connected to, as a literal that
+     * needs no lookup, or {@code null} before it connected.
+     */
+    String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Tells the lightstage that the oldest outstanding shot has been saved and it can continue.
+     */
+    void frameSaved() {
+        frameSaved(-1, Collections.<SessionManifest.Entry>emptyList());
+    }
+
+    /**
+     * Tells the lightstage that a shot has been saved with the given checksums and it can
+     * continue. The checksums are only sent if the lightstage asked for them or speaks protocol
+     * v2.
+     *
+     * @param sequence The sequence number {@link Listener#onShoot(int)} got, or -1 for the oldest
+     *                 outstanding shot
+     */
+    void frameSaved(int sequence, List<SessionManifest.Entry> checksums) {
+        synchronized (mSendLock) {
+            if (!mProtocolV2 && !mSendChecksums) {
+                sendMessage(FRAME_SAVED, 0, null);
+                return;
+            }
+            int length = 1;
+            for (SessionManifest.Entry checksum : checksums) {
+                length += 8 + 1 + checksum.checksum.length;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.put((byte) checksums.size());
+            for (SessionManifest.Entry checksum : checksums) {
+                payload.putLong(checksum.length).put((byte) checksum.checksum.length)
+                        .put(checksum.checksum);
+            }
+            payload.flip();
+            sendMessage(FRAME_SAVED, acknowledge(sequence), payload);
+        }
+        updateCredits();
+    }
+
+    /**
+     * Tells the lightstage that the oldest outstanding shot failed.
+     */
+    void frameFailed() {
+        frameFailed(-1);
+    }
+
+    /**
+     * Tells the lightstage that a shot failed.
+     *
+     * @param sequence The sequence number {@link Listener#onShoot(int)} got, or -1 for the oldest
+     *                 outstanding shot
+     */
+    void frameFailed(int sequence) {
+        synchronized (mSendLock) {
+            sendMessage(ERROR, acknowledge(sequence), null);
+        }
+        updateCredits();
+    }
+
+    /**
+     * Has the phone check, from any thread, whether it can grant the lightstage more shots or
+     * take the parked one.
+     */
+    void updateCredits() {
+        if (mProtocolV2 || mParkedShotDeadlineNs != NO_DEADLINE) {
+            mCreditsChanged = true;
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Removes {@code sequence}, or the oldest outstanding shot if it is -1, from the outstanding
+     * shots.
+     *
+     * @return The sequence number to acknowledge
+     */
+    private int acknowledge(int sequence) {
+        synchronized (mOutstanding) {
+            if (sequence < 0) {
+                Integer oldest = mOutstanding.poll();
+                return oldest != null ? oldest : 0;
+            }
+            mOutstanding.remove(sequence);
+            return sequence;
+        }
+    }
+
+    /**
+     * Closes the sockets and returns from {@link #run()}, from any thread, also in the middle of
+     * a backoff.
+     */
+    void stop() {
+        mStopped = true;
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Sends {@code message} to the lightstage, framed with {@code sequence} if it speaks protocol
+     * v2.
+     *
+     * @param payload What follows the message byte, or {@code null} if nothing does
+     */
+    private void sendMessage(byte message, int sequence, ByteBuffer payload) {
+        int length = payload != null ? payload.remaining() : 0;
+        synchronized (mSendLock) {
+            ByteBuffer buffer;
+            if (mProtocolV2) {
+                buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + length);
+                buffer.put(message).putInt(sequence).putShort((short) length);
+            } else {
+                buffer = ByteBuffer.allocate(1 + length);
+                buffer.put(message);
+            }
+            if (payload != null) {
+                buffer.put(payload);
+            }
+            buffer.flip();
+            send(buffer);
+        }
+    }
+
+    private void sendMessage(byte message, int value) {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(value).flip();
+        sendMessage(message, 0, payload);
+    }
+
+    private void send(ByteBuffer message) {
+        Peer lightstage = mLightstage;
+        if (lightstage == null || !lightstage.connected) {
+            Log.e(TAG, "lightstage Outputstream not available");
+            return;
+        }
+        lightstage.send(message);
+    }
+
+    private static ByteBuffer message(byte message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put(message).flip();
+        return buffer;
+    }
+
+    private static long deadline(int timeoutMs) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    @Override
+    public void run() {
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            int backoffMs = RECONNECT_MIN_MS;
+            while (!mStopped) {
+                boolean handshaken = serveConnection();
+                if (!mPersistent || mStopped) {
+                    break;
+                }
+                if (handshaken) {
+                    // the connection worked, so the lightstage is likely back soon
+                    backoffMs = RECONNECT_MIN_MS;
+                    mListener.onStatus("lost the lightstage - reconnecting");
+                }
+                Log.d(TAG, "reconnecting in " + backoffMs + "ms");
+                pause(backoffMs);
+                backoffMs = Math.min(2 * backoffMs, RECONNECT_MAX_MS);
+            }
+        } finally {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Connects to the lightstage and serves its sessions until the connection is done with.
+     *
+     * @return Whether the lightstage answered the INIT handshake
+     */
+    private boolean serveConnection() {
+        resetConnection();
+        try {
+            // all connects and handshakes run at once, against the same deadline
+            mSetupDeadlineNs = deadline(mConnectTimeoutMs + mIoTimeoutMs);
+            startResolvers();
+            while (!mDone && !mStopped) {
+                if (mLightstage == null) {
+                    raceCandidates();
+                }
+                select();
+            }
+            if (mDone) {
+                Log.d(TAG, "clean exit");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't get I/O for the connection to: " + mHost, e);
+        } finally {
+            Peer lightstage = mLightstage;
+            mLightstage = null;
+            if (lightstage != null) {
+                lightstage.close();
+            }
+            if (mPmd != null) {
+                mPmd.close();
+                mPmd = null;
+            }
+            for (Peer candidate : mCandidates) {
+                candidate.close();
+                if (candidate.partner != null) {
+                    candidate.partner.close();
+                }
+            }
+            mCandidates.clear();
+        }
+        return mSessions > 0;
+    }
+
+    /**
+     * Forgets everything about the previous connection.
+     */
+    private void resetConnection() {
+        synchronized (mSendLock) {
+            mProtocolV2 = false;
+        }
+        mSendChecksums = false;
+        mCreditsChanged = false;
+        mTried.clear();
+        mSessionStarted = false;
+        mEnding = false;
+        mDone = false;
+        mIdle = false;
+        mSessions = 0;
+        mKeepsAlive = false;
+        mLightstageClosed = false;
+        resetSession();
+    }
+
+    /**
+     * Forgets the shots of the previous session.
+     */
+    private void resetSession() {
+        mPmdRecording = false;
+        mShotsReceived = 0;
+        mShotsGranted = 0;
+        mParkedShotDeadlineNs = NO_DEADLINE;
+        synchronized (mOutstanding) {
+            mOutstanding.clear();
+        }
+    }
+
+    /**
+     * Waits {@code ms} milliseconds or until {@link #stop()} is called.
+     */
+    private void pause(int ms) {
+        long until = deadline(ms);
+        try {
+            while (!mStopped && until - System.nanoTime() > 0) {
+                mSelector.select(
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime())));
+                mSelector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Resolves every host on a thread of its own and hands the addresses to
+     * {@link #raceCandidates()}.
+     */
+    private void startResolvers() {
+        // fresh ones, so a lookup left over from the last connection can't interfere
+        final ConcurrentLinkedQueue<InetSocketAddress> resolved = new ConcurrentLinkedQueue<>();
+        List<String> hosts = new ArrayList<>();
+        if (mHost != null) {
+            // the address of the last connection needs no lookup
+            hosts.add(mHost);
+        }
+        for (String host : mHosts) {
+            if (!hosts.contains(host)) {
+                hosts.add(host);
+            }
+        }
+        final AtomicInteger resolving = new AtomicInteger(hosts.size());
+        mResolved = resolved;
+        mResolving = resolving;
+        for (final String host : hosts) {
+            Thread resolver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (InetAddress address : InetAddress.getAllByName(host)) {
+                            resolved.add(new InetSocketAddress(address, mLightstagePort));
+                        }
+                    } catch (UnknownHostException e) {
+                        Log.w(TAG, "Don't know about host: " + host);
+                    } finally {
+                        resolving.decrementAndGet();
+                        Selector selector = mSelector;
+                        if (selector != null) {
+                            selector.wakeup();
+                        }
+                    }
+                }
+            }, "LightstageResolver-" + host);
+            // a lookup that hangs must not keep the app alive
+            resolver.setDaemon(true);
+            resolver.start();
+        }
+    }
+
+    /**
+     * Connects to the lightstage and the PMD at every address resolved since the last call.
+     *
+     * @throws IOException if no candidate is left and no host is still being resolved
+     */
+    private void raceCandidates() throws IOException {
+        InetSocketAddress address;
+        while (mLightstage == null && (address = mResolved.poll()) != null) {
+            if (!mTried.add(address.getAddress())) {
+                continue;
+            }
+            Peer lightstage;
+            try {
+                lightstage = new Peer("lightstage", address, mSetupDeadlineNs);
+            } catch (IOException e) {
+                Log.w(TAG, "can't connect to lightstage at " + address + ": " + e.getMessage());
+                continue;
+            }
+            mCandidates.add(lightstage);
+            try {
+                lightstage.partner = new Peer("pmd",
+                        new InetSocketAddress(address.getAddress(), mPmdPort), mSetupDeadlineNs);
+                lightstage.partner.partner = lightstage;
+                if (lightstage.partner.connectedRightAway) {
+                    onCandidateConnected(lightstage.partner);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "PMD not present at " + address.getAddress());
+            }
+            if (lightstage.connectedRightAway) {
+                onCandidateConnected(lightstage);
+            }
+        }
+        if (mLightstage == null && mCandidates.isEmpty() && mResolved.isEmpty()
+                && mResolving.get() == 0) {
+            throw new IOException("no lightstage reachable: " + Arrays.toString(mHosts));
+        }
+    }
+
+    /**
+     * The first lightstage candidate to connect wins, together with the PMD at its address; a
+     * PMD waits for its lightstage to win before it is sent INIT.
+     */
+    private void onCandidateConnected(Peer peer) throws IOException {
+        peer.connected = true;
+        if (!mCandidates.remove(peer)) {
+            peer.key.interestOps(0);
+            return;
+        }
+        Log.d(TAG, "lightstage at " + peer.address + " connected first");
+        for (Peer loser : mCandidates) {
+            loser.close();
+            if (loser.partner != null) {
+                loser.partner.close();
+            }
+        }
+        mCandidates.clear();
+        mHost = peer.address.getAddress().getHostAddress();
+        mPmd = peer.partner;
+        peer.partner = null;
+        mLightstage = peer;
+        onConnected(peer);
+        if (mPmd != null) {
+            mPmd.partner = null;
+            if (mPmd.connected) {
+                onConnected(mPmd);
+            }
+        }
+    }
+
+    /**
+     * Drops a candidate that couldn't connect, together with its PMD.
+     */
+    private void onCandidateFailed(Peer peer, IOException e) {
+        peer.close();
+        if (mCandidates.remove(peer)) {
+            Log.w(TAG, "can't connect to lightstage at " + peer.address + ": " + e.getMessage());
+            if (peer.partner != null) {
+                peer.partner.close();
+            }
+        } else if (peer.partner != null) {
+            peer.partner.partner = null;
+        }
+    }
+
+    /**
+     * Waits for the sockets until the next deadline and serves them.
+     */
+    private void select() throws IOException {
+        long deadline;
+        if (mLightstage == null) {
+            deadline = mSetupDeadlineNs;
+        } else {
+            deadline = mLightstage.nextDeadlineNs();
+            if (mPmd != null) {
+                deadline = Math.min(deadline, mPmd.nextDeadlineNs());
+            }
+            if (keepsAlive()) {
+                long intervalNs = TimeUnit.MILLISECONDS.toNanos(mKeepAliveMs);
+                deadline = Math.min(deadline, mLightstage.lastWriteNs + intervalNs);
+                if (mKeepsAlive) {
+                    deadline = Math.min(deadline,
+                            mLightstage.lastReadNs + MISSED_KEEP_ALIVES * intervalNs);
+                }
+            }
+        }
+        if (mProtocolV2 && mSessionStarted && !mEnding && mShotsGranted <= mShotsReceived) {
+            // the phone may only find out it has room again by asking
+            deadline = Math.min(deadline, deadline(CREDIT_POLL_MS));
+        }
+        if (mParkedShotDeadlineNs != NO_DEADLINE) {
+            deadline = Math.min(deadline, deadline(CREDIT_POLL_MS));
+        }
+        if (deadline == NO_DEADLINE) {
+            mSelector.select();
+        } else {
+            long waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1;
+            if (waitMs > 0) {
+                mSelector.select(waitMs);
+            } else {
+                mSelector.selectNow();
+            }
+        }
+        for (SelectionKey key : mSelector.selectedKeys()) {
+            Peer peer = (Peer) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable() && peer.channel.finishConnect()) {
+                    if (peer == mLightstage || peer == mPmd) {
+                        onConnected(peer);
+                    } else {
+                        onCandidateConnected(peer);
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(peer);
+                }
+            } catch (IOException e) {
+                onFailed(peer, e);
+            }
+        }
+        mSelector.selectedKeys().clear();
+        if (mLightstage == null) {
+            if (System.nanoTime() - mSetupDeadlineNs >= 0) {
+                throw new SocketTimeoutException("no lightstage connected in time: "
+                        + Arrays.toString(mHosts));
+            }
+            return;
+        }
+        if (mCreditsChanged || mShotsGranted <= mShotsReceived) {
+            grantCredits();
+        }
+        if (mParkedShotDeadlineNs != NO_DEADLINE) {
+            takeParkedShot();
+        }
+        if (keepsAlive()) {
+            keepAlive();
+        }
+        // write what other threads queued and check the deadlines
+        for (Peer peer : new Peer[]{mLightstage, mPmd}) {
+            if (peer == null || !peer.key.isValid()) {
+                continue;
+            }
+            try {
+                if (peer.connected) {
+                    peer.flush();
+                }
+                long peerDeadline = peer.nextDeadlineNs();
+                if (peerDeadline != NO_DEADLINE && System.nanoTime() - peerDeadline >= 0) {
+                    throw new SocketTimeoutException(peer.name + " timed out");
+                }
+            } catch (IOException e) {
+                onFailed(peer, e);
+            }
+        }
+    }
+
+    private boolean keepsAlive() {
+        return mProtocolV2 && mKeepAliveMs > 0 && mLightstage.key.isValid();
+    }
+
+    /**
+     * Sends a keep-alive if the phone sent nothing for the interval.
+     *
+     * @throws SocketTimeoutException if a lightstage that sends keep-alives stopped sending them
+     */
+    private void keepAlive() throws SocketTimeoutException {
+        long intervalNs = TimeUnit.MILLISECONDS.toNanos(mKeepAliveMs);
+        long now = System.nanoTime();
+        if (now - mLightstage.lastWriteNs >= intervalNs) {
+            sendMessage(KEEP_ALIVE, 0, null);
+        }
+        if (mKeepsAlive && now - mLightstage.lastReadNs >= MISSED_KEEP_ALIVES * intervalNs) {
+            throw new SocketTimeoutException("lightstage missed " + MISSED_KEEP_ALIVES
+                    + " keep-alives");
+        }
+    }
+
+    private void onConnected(Peer peer) throws IOException {
+        peer.connected = true;
+        peer.key.interestOps(SelectionKey.OP_READ);
+        // the peer has to answer the handshake in time, unless the lightstage of a persistent
+        // connection only answers once the next session is set up
+        if (peer != mLightstage || !mPersistent) {
+            peer.readDeadlineNs = peer.setupDeadlineNs;
+        }
+        peer.send(message(INIT));
+        Log.d(TAG, "waiting for " + peer.name);
+    }
+
+    private void read(Peer peer) throws IOException {
+        if (peer.channel.read(peer.in) < 0) {
+            throw new EOFException(peer.name + " closed the connection");
+        }
+        peer.lastReadNs = System.nanoTime();
+        if (peer == mLightstage) {
+            readLightstage();
+        } else {
+            readPmd();
+        }
+    }
+
+    /**
+     * Handles the complete messages the lightstage sent so far.
+     */
+    private void readLightstage() throws IOException {
+        Peer lightstage = mLightstage;
+        ByteBuffer in = lightstage.in;
+        in.flip();
+        try {
+            while (in.hasRemaining() && !mEnding) {
+                if (!lightstage.ready) {
+                    lightstage.ready = true;
+                    lightstage.readDeadlineNs = NO_DEADLINE;
+                    if (in.get() == INIT) {
+                        Log.d(TAG, "lightstage ready!");
+                    }
+                    startSession();
+                } else if ((!mSessionStarted && !mIdle)
+                        || !(mProtocolV2 ? handleFrame(in) : handleCommand(in))) {
+                    // wait for the PMD, or the rest of the message
+                    break;
+                }
+            }
+        } finally {
+            in.compact();
+        }
+        if ((mSessionStarted || mIdle) && !mEnding && in.position() > 0) {
+            if (lightstage.readDeadlineNs == NO_DEADLINE) {
+                lightstage.readDeadlineNs = deadline(mIoTimeoutMs);
+            }
+        } else if (lightstage.ready) {
+            lightstage.readDeadlineNs = NO_DEADLINE;
+        }
+    }
+
+    /**
+     * Handles the message at the position of {@code in}.
+     *
+     * @return Whether the message was complete; if not, the position is left where it was
+     */
+    private boolean handleCommand(ByteBuffer in) throws IOException {
+        int start = in.position();
+        byte command = in.get();
+        if (command == SHOOT) {
+            shoot(-1);
+        } else if (command == INIT) {
+            nextSession();
+        } else if (command == PROTOCOL_V2) {
+            acceptProtocolV2();
+        } else if (command == EXPOSURE_LADDER) {
+            if (!in.hasRemaining() || in.remaining() < 1 + 4 * (in.get(start + 1) & 0xff)) {
+                in.position(start);
+                return false;
+            }
+            exposureLadder(in);
+        } else if (command == FRAME_COUNT) {
+            if (in.remaining() < 4) {
+                in.position(start);
+                return false;
+            }
+            frameCount(in);
+        } else if (command == CHECKSUMS) {
+            Log.d(TAG, "sending checksums with every saved shot");
+            mSendChecksums = true;
+        } else if (command == END) {
+            end();
+        } else {
+            Log.w(TAG, "unknown command from lightstage: " + command);
+        }
+        return true;
+    }
+
+    /**
+     * Handles the v2 frame at the position of {@code in}.
+     *
+     * @return Whether the frame was complete; if not, the position is left where it was
+     */
+    private boolean handleFrame(ByteBuffer in) throws IOException {
+        int start = in.position();
+        if (in.remaining() < FRAME_HEADER_BYTES) {
+            return false;
+        }
+        int length = in.getShort(start + 5) & 0xffff;
+        // a frame that can't fit would never complete and spin the selector on a full buffer
+        if (FRAME_HEADER_BYTES + length > in.capacity()) {
+            throw new IOException("frame of " + length + " bytes from lightstage");
+        }
+        if (in.remaining() < FRAME_HEADER_BYTES + length) {
+            return false;
+        }
+        byte command = in.get();
+        int sequence = in.getInt();
+        in.getShort();
+        int end = in.position() + length;
+        ByteBuffer payload = in.slice();
+        payload.limit(length);
+        if (command == SHOOT) {
+            shoot(sequence);
+        } else if (command == EXPOSURE_LADDER) {
+            requirePayload(command, payload,
+                    1 + (payload.hasRemaining() ? 4 * (payload.get(0) & 0xff) : 0));
+            exposureLadder(payload);
+        } else if (command == FRAME_COUNT) {
+            requirePayload(command, payload, 4);
+            frameCount(payload);
+        } else if (command == END) {
+            end();
+        } else if (command == INIT) {
+            nextSession();
+        } else if (command == KEEP_ALIVE) {
+            mKeepsAlive = true;
+        } else if (command != CHECKSUMS) {
+            Log.w(TAG, "unknown frame from lightstage: " + command);
+        }
+        in.position(end);
+        return true;
+    }
+
+    /**
+     * @throws IOException if the payload of a frame is shorter than its command needs
+     */
+    private static void requirePayload(byte command, ByteBuffer payload, int bytes)
+            throws IOException {
+        if (payload.remaining() < bytes) {
+            throw new IOException("protocol error: frame " + command + " from lightstage has "
+                    + payload.remaining() + " bytes of payload, needs " + bytes);
+        }
+    }
+
+    private void exposureLadder(ByteBuffer in) throws IOException {
+        int steps = in.get() & 0xff;
+        float[] ladder = new float[steps];
+        for (int i = 0; i < steps; i++) {
+            ladder[i] = in.getInt() / 1000000f;
+        }
+        Log.d(TAG, "exposure ladder: " + Arrays.toString(ladder));
+        mListener.onExposureLadder(ladder);
+    }
+
+    private void frameCount(ByteBuffer in) {
+        int shots = in.getInt();
+        Log.d(TAG, "frame count: " + shots);
+        int admitted = mListener.onFrameCount(shots);
+        if (admitted < shots) {
+            Log.w(TAG, "only " + admitted + " of " + shots + " shots fit");
+            sendMessage(FRAME_BUDGET, admitted);
+        }
+    }
+
+    /**
+     * Switches to protocol v2 at the lightstage's offer.
+     */
+    private void acceptProtocolV2() {
+        synchronized (mSendLock) {
+            if (mProtocolV2) {
+                return;
+            }
+            send(message(PROTOCOL_V2));
+            mProtocolV2 = true;
+        }
+        Log.d(TAG, "lightstage speaks protocol v2");
+        grantCredits();
+    }
+
+    /**
+     * Sends the lightstage a new credit if the phone can take more shots than it granted so far.
+     */
+    private void grantCredits() {
+        mCreditsChanged = false;
+        if (!mProtocolV2 || !mSessionStarted || mEnding) {
+            return;
+        }
+        int granted = mShotsReceived + Math.max(0, mListener.shotCredits());
+        if (granted > mShotsGranted) {
+            mShotsGranted = granted;
+            sendMessage(CREDIT, granted);
+        }
+    }
+
+    private void shoot(int sequence) {
+        if (!mSessionStarted) {
+            Log.w(TAG, "lightstage sent a shot outside of a session");
+            frameFailed(sequence);
+            return;
+        }
+        mShotsReceived++;
+        if (mProtocolV2) {
+            if (mShotsReceived > mShotsGranted) {
+                Log.w(TAG, "lightstage sent shot " + sequence + " without credit");
+            }
+            synchronized (mOutstanding) {
+                mOutstanding.add(sequence);
+            }
+        } else if (mListener.shotCredits() < 1) {
+            // the lightstage waits for the shot anyway, so the selector keeps serving the
+            // sockets until the savers make room
+            Log.d(TAG, "parking shot until it fits");
+            mParkedShotDeadlineNs = deadline(mIoTimeoutMs);
+            return;
+        }
+        takeShot(sequence);
+    }
+
+    /**
+     * Takes the parked lockstep shot once it fits, or fails it once it waited too long.
+     */
+    private void takeParkedShot() {
+        if (mListener.shotCredits() >= 1) {
+            mParkedShotDeadlineNs = NO_DEADLINE;
+            takeShot(-1);
+        } else if (System.nanoTime() - mParkedShotDeadlineNs >= 0) {
+            mParkedShotDeadlineNs = NO_DEADLINE;
+            Log.e(TAG, "no room for the shot after " + mIoTimeoutMs + "ms");
+            failShot(-1);
+        }
+    }
+
+    private void takeShot(int sequence) {
+        if (mPmd != null && mPmd.ready && !mPmdRecording) {
+            // start recording on pmd
+            mPmd.send(message(SHOOT));
+            mPmdRecording = true;
+        }
+        try {
+            mListener.onShoot(sequence);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.d(TAG, "something went wrong during takePicture");
+            failShot(sequence);
+        }
+    }
+
+    private void failShot(int sequence) {
+        frameFailed(sequence);
+        if (mPmd != null && mPmd.ready) {
+            mPmd.send(message(ERROR));
+        }
+    }
+
+    private void end() {
+        mEnding = true;
+        mListener.onSessionEnded();
+        if (mPmd != null && mPmd.ready) {
+            mPmd.send(message(END));
+            // the PMD answers once it wrote its recording
+            mPmd.readDeadlineNs = deadline(mIoTimeoutMs);
+        } else {
+            sessionDone();
+        }
+    }
+
+    /**
+     * Ends the connection, or waits for the next session on a persistent one.
+     */
+    private void sessionDone() {
+        mSessionStarted = false;
+        mEnding = false;
+        if (!mPersistent || mLightstageClosed) {
+            mDone = true;
+            return;
+        }
+        mIdle = true;
+        Log.d(TAG, "session done - waiting for the next INIT");
+    }
+
+    /**
+     * Starts the session the lightstage asked for with INIT on a persistent connection, once the
+     * PMD answered its INIT too. A PMD that was dropped is tried again.
+     */
+    private void nextSession() {
+        if (!mIdle) {
+            Log.w(TAG, "lightstage sent INIT in the middle of a session");
+            return;
+        }
+        Log.d(TAG, "lightstage starts the next session");
+        mIdle = false;
+        resetSession();
+        if (mPmd != null) {
+            mPmd.ready = false;
+            mPmd.readDeadlineNs = deadline(mIoTimeoutMs);
+            mPmd.send(message(INIT));
+        } else {
+            try {
+                mPmd = new Peer("pmd",
+                        new InetSocketAddress(mLightstage.address.getAddress(), mPmdPort),
+                        deadline(mConnectTimeoutMs + mIoTimeoutMs));
+                if (mPmd.connectedRightAway) {
+                    onConnected(mPmd);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "PMD not present - continuing without it");
+                if (mPmd != null) {
+                    mPmd.close();
+                    mPmd = null;
+                }
+            }
+        }
+        startSession();
+    }
+
+    /**
+     * Handles the commands the lightstage sent while the PMD finished the last session.
+     */
+    private void resumeLightstage() throws IOException {
+        if (mIdle && mLightstage != null && mLightstage.key.isValid()) {
+            readLightstage();
+        }
+    }
+
+    /**
+     * Starts the session once the lightstage and the PMD, if there is one, are ready.
+     */
+    private void startSession() {
+        if (mSessionStarted || mIdle || !mLightstage.ready || (mPmd != null && !mPmd.ready)) {
+            return;
+        }
+        mSessionStarted = true;
+        int lastSavedShot = mListener.onSessionStarted();
+        if (mSessions++ > 0) {
+            // answers the INIT of the lightstage
+            sendMessage(INIT, 0, null);
+        }
+        if (lastSavedShot >= 0) {
+            Log.d(TAG, "resuming after shot " + lastSavedShot);
+            sendMessage(RESUME, lastSavedShot);
+        }
+        grantCredits();
+    }
+
+    /**
+     * Handles the answers of the PMD.
+     */
+    private void readPmd() throws IOException {
+        ByteBuffer in = mPmd.in;
+        in.flip();
+        boolean started = false;
+        boolean sessionDone = false;
+        while (in.hasRemaining()) {
+            byte message = in.get();
+            if (!mPmd.ready) {
+                mPmd.ready = true;
+                mPmd.readDeadlineNs = NO_DEADLINE;
+                if (message == INIT) {
+                    Log.d(TAG, "pmd ready!");
+                }
+                started = true;
+            } else if (message == END) { // CLOSE PMD
+                Log.d(TAG, "pmd shutdown successful");
+                mListener.onStatus("pmd shutdown successful");
+                mPmd.readDeadlineNs = NO_DEADLINE;
+                if (mEnding) {
+                    sessionDone();
+                    sessionDone = true;
+                }
+            } else if (message == SHOOT) {
+                Log.d(TAG, "pmd writing now");
+                mListener.onStatus("pmd writing now");
+            } else {
+                Log.d(TAG, "unknown message from pmd: " + message);
+                mListener.onStatus("unknown message from pmd: " + message);
+            }
+        }
+        in.compact();
+        if (started) {
+            onPmdSettled();
+        } else if (sessionDone) {
+            resumeLightstage();
+        }
+    }
+
+    /**
+     * The PMD answered or was dropped, so the session may start with the commands the lightstage
+     * already sent.
+     */
+    private void onPmdSettled() throws IOException {
+        if (mLightstage.ready && !mSessionStarted && mLightstage.key.isValid()) {
+            startSession();
+            readLightstage();
+        }
+    }
+
+    private void onFailed(Peer peer, IOException e) throws IOException {
+        if (peer != mLightstage && peer != mPmd) {
+            onCandidateFailed(peer, e);
+            return;
+        }
+        peer.close();
+        if (peer == mLightstage) {
+            if (mEnding) {
+                // the lightstage is done; the PMD may still be writing
+                mLightstageClosed = true;
+                return;
+            }
+            throw e;
+        }
+        if (peer.connected) {
+            Log.e(TAG, "lost the pmd - continuing without it", e);
+            mListener.onStatus("lost the pmd: " + e.getMessage());
+        } else {
+            Log.d(TAG, "PMD not present - continuing without it");
+        }
+        mPmd = null;
+        if (mEnding) {
+            sessionDone();
+            resumeLightstage();
+        } else {
+            onPmdSettled();
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The frames taken for one lightstage shot command: one frame per step of the exposure ladder.
+ * The lightstage is signaled once all of them are saved, in every output format the frames are
+ * taken in.
+ */
+class LightstageShot {
+
+    /**
+     * One frame of a {@link LightstageShot}.
+     */
+    static final class Frame {
+
+        final LightstageShot shot;
+
+        /**
+         * Index of the frame's exposure in the ladder.
+         */
+        final int bracket;
+
+        /**
+         * The file the frame is saved into.
+         */
+        final File file;
+
+        /**
+         * The file the RAW version of the frame is saved into, if it is taken in RAW as well.
+         */
+        final File rawFile;
+
+        /**
+         * When the frame's image became available, for the {@link CaptureTimings} of its saver.
+         */
+        volatile long imageAvailableNs = CaptureTimings.NOT_AVAILABLE;
+
+        private volatile SessionManifest.Entry mChecksum;
+        private volatile SessionManifest.Entry mRawChecksum;
+
+        Frame(LightstageShot shot, int bracket, File file) {
+            this.shot = shot;
+            this.bracket = bracket;
+            this.file = file;
+            this.rawFile = new File(file.getParentFile(),
+                    file.getName().replaceFirst("\\.[^.]*$", ".dng"));
+        }
+
+        /**
+         * Records the checksum of the {@code length} bytes written into {@link #file} or
+         * {@link #rawFile}.
+         */
+        void setChecksum(File written, long length, FrameChecksum checksum) {
+            SessionManifest.Entry entry = new SessionManifest.Entry(written.getName(), length,
+                    checksum.getAlgorithm(), checksum.value());
+            if (written.equals(rawFile)) {
+                mRawChecksum = entry;
+            } else {
+                mChecksum = entry;
+            }
+        }
+
+    }
+
+    /**
+     * The index of the shot within its session.
+     */
+    final int index;
+
+    final Frame[] frames;
+
+    /**
+     * The number of files saved per frame, e.g. 2 for a JPEG and a DNG.
+     */
+    final int outputs;
+
+    /**
+     * The session pack the frames are appended to instead of being saved into their files, or
+     * {@code null}.
+     */
+    final SessionPack.Writer pack;
+
+    /**
+     * Makes the written frames durable before the shot is acknowledged.
+     */
+    final GroupCommitter committer;
+
+    /**
+     * The algorithm of the checksums computed while the frames are written, or {@code null}.
+     */
+    final String checksumAlgorithm;
+
+    /**
+     * The sequence number the lightstage gave the shot, -1 in the lockstep protocol.
+     */
+    volatile int sequence = -1;
+
+    private final AtomicInteger mUnsaved;
+    private final AtomicInteger mWritten = new AtomicInteger();
+    private final AtomicBoolean mFailed = new AtomicBoolean();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final int mOutputs;
+
+    /**
+     * @param dir      The directory the frames are saved into
+     * @param session  The timestamp of the session
+     * @param index    The index of the shot within the session
+     * @param brackets The number of exposures taken for the shot
+     */
+    LightstageShot(File dir, String session, int index, int brackets) {
+        this(dir, session, index, brackets, 1, ".jpg", null, GroupCommitter.NO_SYNC);
+    }
+
+    /**
+     * @param dir       The directory the frames are saved into
+     * @param session   The timestamp of the session
+     * @param index     The index of the shot within the session
+     * @param brackets  The number of exposures taken for the shot
+     * @param outputs   The number of files saved per frame, e.g. 2 for a JPEG and a DNG
+     * @param extension The extension of the frame files, e.g. {@code ".jpg"}
+     * @param pack      The session pack the frames go into, or {@code null} for separate files
+     * @param committer Makes the written frames durable
+     */
+    LightstageShot(File dir, String session, int index, int brackets, int outputs,
+                   String extension, SessionPack.Writer pack, GroupCommitter committer) {
+        this(dir, session, index, brackets, outputs, extension, pack, committer, null);
+    }
+
+    /**
+     * @param checksumAlgorithm The {@link FrameChecksum} algorithm of the frames, or
+     *                          {@code null} to skip the checksums
+     */
+    LightstageShot(File dir, String session, int index, int brackets, int outputs,
+                   String extension, SessionPack.Writer pack, GroupCommitter committer,
+                   String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.index = index;
+        this.pack = pack;
+        this.committer = committer;
+        this.outputs = outputs;
+        frames = new Frame[brackets];
+        for (int i = 0; i < brackets; i++) {
+            frames[i] = new Frame(this, i,
+                    new File(dir, fileName(session, index, i, brackets, extension)));
+        }
+        mOutputs = brackets * outputs;
+        mUnsaved = new AtomicInteger(mOutputs);
+    }
+
+    /**
+     * Returns the file name of a frame. Bracketed frames carry their bracket index, so
+     * {@code 20180101_120000_0042_b1.jpg} is the second exposure of the 43rd shot.
+     */
+    static String fileName(String session, int index, int bracket, int brackets) {
+        return fileName(session, index, bracket, brackets, ".jpg");
+    }
+
+    /**
+     * Returns the file name of a frame saved with {@code extension}.
+     */
+    static String fileName(String session, int index, int bracket, int brackets,
+                           String extension) {
+        if (brackets == 1) {
+            return session + "_" + String.format(Locale.US, "%04d", index) + extension;
+        }
+        return session + "_" + String.format(Locale.US, "%04d_b%d", index, bracket) + extension;
+    }
+
+    /**
+     * Returns a checksum for a saver to compute while writing a frame, or {@code null} if the
+     * shot has none. The algorithm was checked by {@link CaptureConfig#parseChecksum}.
+     */
+    FrameChecksum newChecksum() {
+        return null != checksumAlgorithm ? FrameChecksum.create(checksumAlgorithm) : null;
+    }
+
+    /**
+     * Returns the checksums recorded for the saved files of the shot, the frames first and then
+     * their RAW versions.
+     */
+    List<SessionManifest.Entry> checksums() {
+        List<SessionManifest.Entry> checksums = new ArrayList<>();
+        for (Frame frame : frames) {
+            if (null != frame.mChecksum) {
+                checksums.add(frame.mChecksum);
+            }
+        }
+        for (Frame frame : frames) {
+            if (null != frame.mRawChecksum) {
+                checksums.add(frame.mRawChecksum);
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * Records that one of the frames has been saved in one of its output formats.
+     *
+     * @return Whether this was the last file of the shot
+     */
+    boolean onFrameSaved() {
+        return mUnsaved.decrementAndGet() == 0;
+    }
+
+    /**
+     * Called when the camera couldn't capture {@code frame}, so none of its outputs will be
+     * written. They fail like outputs the savers couldn't write.
+     */
+    void onCaptureFailed(Frame frame, IOException failure, ImageSaver.Callback callback) {
+        for (int i = 0; i < outputs; i++) {
+            onFrameWritten(frame, null, 0, failure, callback);
+        }
+    }
+
+    /**
+     * Returns the number of bytes written for the shot so far.
+     */
+    long bytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * Returns whether any frame of the shot couldn't be saved.
+     */
+    boolean hasFailed() {
+        return mFailed.get();
+    }
+
+    /**
+     * Called by the savers once one output of {@code frame} is written. The frame counts as saved
+     * once the {@link #committer} made it durable. In the lockstep protocol the last one of the
+     * shot flushes the commit group, since the lightstage waits for the shot's acknowledgement;
+     * pipelined shots leave their group to fill up with the shots after them.
+     *
+     * @param target  The written output, or {@code null} if it couldn't even be created
+     * @param bytes   The number of bytes written
+     * @param failure The reason the output couldn't be written, or {@code null}
+     */
+    void onFrameWritten(final Frame frame, GroupCommitter.Target target, long bytes,
+                        IOException failure, final ImageSaver.Callback callback) {
+        mBytesWritten.addAndGet(bytes);
+        boolean last = mWritten.incrementAndGet() == mOutputs;
+        if (failure != null) {
+            if (target != null) {
+                try {
+                    target.release();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            mFailed.set(true);
+            callback.onSaveFailed(frame, failure);
+            if (onFrameSaved()) {
+                callback.onShotSaved(this);
+            }
+            if (last) {
+                flushIfWaitedFor();
+            }
+            return;
+        }
+        committer.commit(target, new GroupCommitter.Listener() {
+
+            @Override
+            public void onDurable(IOException failure) {
+                if (failure != null) {
+                    mFailed.set(true);
+                    callback.onSaveFailed(frame, failure);
+                }
+                if (onFrameSaved()) {
+                    // the lightstage continues once all brackets of the shot are saved
+                    callback.onShotSaved(LightstageShot.this);
+                }
+            }
+
+        });
+        if (last) {
+            flushIfWaitedFor();
+        }
+    }
+
+    /**
+     * Syncs the commit group of the shot's last output if nothing else would before the
+     * lightstage sends the next shot: in the lockstep protocol, or if the group has no interval.
+     */
+    private void flushIfWaitedFor() {
+        if (sequence < 0 || committer.getGroupIntervalMs() <= 0) {
+            committer.flush();
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of threads writing images to storage, fed through a bounded queue. Savers never
+ * run on the camera callback thread, so a slow write can't delay the capture results of the next
+ * shot. When the queue is full a save is rejected with a {@link RejectedExecutionException}
+ * rather than run on the submitting thread.
+ */
+class SaverExecutor extends ThreadPoolExecutor {
+
+    /**
+     * @param name          The name prefix of the saver threads
+     * @param threads       The number of saver threads
+     * @param queueCapacity The number of saves that may wait for a thread
+     */
+    SaverExecutor(final String name, int threads, int queueCapacity) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+                        // the camera and preview threads come first
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+
+                }, new AbortPolicy());
+    }
+
+    /**
+     * Returns how many more saves can be submitted right now without being rejected.
+     */
+    int freeSlots() {
+        return getQueue().remainingCapacity();
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * An append-only log of a lightstage session: the commands received, the frames captured and the
+ * shots saved. If the app dies in the middle of a session, {@link #recover} finds the session name
+ * and the last shot up to which every shot was saved, so the session can continue from there
+ * instead of being reshot from the start. Pipelined shots may be saved out of order, so a saved
+ * shot after one that wasn't saved, or failed, is taken again.
+ *
+ * <p>The journal starts with the {@link #MAGIC} and {@link #VERSION} ints and the session name as
+ * a length prefixed UTF-8 string, followed by {@link #RECORD_BYTES} byte records: the record type,
+ * the shot index, a value (the command byte, or the bracket of a frame) as ints, and the time in
+ * milliseconds since the epoch as a long. All numbers are big endian. A record torn by a crash is
+ * ignored.</p>
+ */
+class SessionJournal implements Closeable {
+
+    /**
+     * "LSJR" in ASCII.
+     */
+    static final int MAGIC = 0x4c534a52;
+    static final int VERSION = 1;
+
+    static final String EXTENSION = ".journal";
+
+    static final int RECORD_BYTES = 1 + 4 + 4 + 8;
+
+    /**
+     * A command from the lightstage; the value is the command byte.
+     */
+    static final byte COMMAND = 1;
+    /**
+     * A frame has been captured; the value is its bracket.
+     */
+    static final byte CAPTURED = 2;
+    /**
+     * A frame has been saved; the value is its bracket.
+     */
+    static final byte SAVED = 3;
+    /**
+     * A frame couldn't be saved; the value is its bracket.
+     */
+    static final byte FAILED = 4;
+    /**
+     * The session ended cleanly.
+     */
+    static final byte ENDED = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * What {@link #recover} found about an unfinished session.
+     */
+    static final class Recovery {
+
+        final File file;
+        final String session;
+        /**
+         * The index of the last shot that, like every shot before it, had all of its frames
+         * saved, or -1.
+         */
+        final int lastSavedShot;
+
+        Recovery(File file, String session, int lastSavedShot) {
+            this.file = file;
+            this.session = session;
+            this.lastSavedShot = lastSavedShot;
+        }
+
+    }
+
+    private final File mFile;
+    private final String mSession;
+    private final FileChannel mChannel;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_BYTES);
+
+    private SessionJournal(File file, String session, FileChannel channel) {
+        mFile = file;
+        mSession = session;
+        mChannel = channel;
+    }
+
+    /**
+     * Starts the journal of a new session in {@code dir}.
+     */
+    static SessionJournal create(File dir, String session) throws IOException {
+        File file = new File(dir, session + EXTENSION);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        FileChannel channel = raf.getChannel();
+        byte[] name = session.getBytes(UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 2 + name.length);
+        header.putInt(MAGIC).putInt(VERSION).putShort((short) name.length).put(name).flip();
+        SessionPack.writeFully(channel, header);
+        channel.force(true);
+        return new SessionJournal(file, session, channel);
+    }
+
+    /**
+     * Continues the journal of a recovered session, dropping a record torn by the crash.
+     */
+    static SessionJournal resume(Recovery recovery) throws IOException {
+        FileChannel channel = new RandomAccessFile(recovery.file, "rw").getChannel();
+        long headerBytes = 4 + 4 + 2 + recovery.session.getBytes(UTF_8).length;
+        long records = (channel.size() - headerBytes) / RECORD_BYTES;
+        channel.truncate(headerBytes + records * RECORD_BYTES);
+        channel.position(channel.size());
+        return new SessionJournal(recovery.file, recovery.session, channel);
+    }
+
+    /**
+     * Looks at the most recent journal in {@code dir}.
+     *
+     * @return The unfinished session it records, or {@code null} if it ended cleanly or there is
+     * none
+     */
+    static Recovery recover(File dir) throws IOException {
+        File[] journals = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (journals == null || journals.length == 0) {
+            return null;
+        }
+        File latest = journals[0];
+        for (File journal : journals) {
+            // session names are timestamps, so they sort by time
+            if (journal.getName().compareTo(latest.getName()) > 0) {
+                latest = journal;
+            }
+        }
+        return read(latest);
+    }
+
+    /**
+     * Reads a journal.
+     *
+     * @return The unfinished session it records, or {@code null} if it ended cleanly
+     */
+    static Recovery read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer journal = ByteBuffer.allocate((int) raf.length());
+            raf.readFully(journal.array());
+            if (journal.remaining() < 10 || journal.getInt() != MAGIC
+                    || journal.getInt() != VERSION) {
+                throw new IOException("not a session journal: " + file);
+            }
+            byte[] name = new byte[journal.getShort() & 0xffff];
+            journal.get(name);
+            // the latest outcome of a shot counts, e.g. of a failed shot taken again on resume
+            BitSet saved = new BitSet();
+            while (journal.remaining() >= RECORD_BYTES) {
+                byte type = journal.get();
+                int shot = journal.getInt();
+                journal.getInt();
+                journal.getLong();
+                if (type == ENDED) {
+                    return null;
+                } else if (type == FAILED) {
+                    saved.clear(shot);
+                } else if (type == SAVED) {
+                    saved.set(shot);
+                }
+            }
+            return new Recovery(file, new String(name, UTF_8), saved.nextClearBit(0) - 1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    String getSession() {
+        return mSession;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records a command received from the lightstage.
+     */
+    void command(int shot, byte command) throws IOException {
+        append(COMMAND, shot, command, false);
+    }
+
+    /**
+     * Records that a frame of a shot has been captured.
+     */
+    void captured(LightstageShot.Frame frame) throws IOException {
+        append(CAPTURED, frame.shot.index, frame.bracket, false);
+    }
+
+    /**
+     * Records the outcome of every frame of a shot.
+     *
+     * @param sync Whether to sync the journal, so the record is as durable as the frames
+     */
+    void shotSaved(LightstageShot shot, boolean sync) throws IOException {
+        for (LightstageShot.Frame frame : shot.frames) {
+            append(shot.hasFailed() ? FAILED : SAVED, shot.index, frame.bracket, false);
+        }
+        if (sync) {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * Records that the session ended cleanly and closes the journal.
+     */
+    void ended(int shots) throws IOException {
+        append(ENDED, shots, 0, true);
+        close();
+    }
+
+    private synchronized void append(byte type, int shot, int value, boolean sync)
+            throws IOException {
+        mRecord.clear();
+        mRecord.put(type).putInt(shot).putInt(value).putLong(System.currentTimeMillis());
+        mRecord.flip();
+        SessionPack.writeFully(mChannel, mRecord);
+        if (sync) {
+            mChannel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+}
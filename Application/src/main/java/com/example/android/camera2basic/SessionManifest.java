@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The checksums of the saved frames of a session, one line per file: the file name, its length
+ * in bytes, the checksum algorithm and the checksum as hex digits, separated by tabs. Frames in a
+ * {@link SessionPack} are listed under the name they would have as a file of their own. A resumed
+ * session appends to the manifest it started.
+ */
+class SessionManifest implements Closeable {
+
+    static final String EXTENSION = ".manifest";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The checksum of one saved file.
+     */
+    static final class Entry {
+
+        final String name;
+        final long length;
+        final String algorithm;
+        final byte[] checksum;
+
+        Entry(String name, long length, String algorithm, byte[] checksum) {
+            this.name = name;
+            this.length = length;
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public String toString() {
+            return name + '\t' + length + '\t' + algorithm + '\t' + FrameChecksum.toHex(checksum);
+        }
+
+    }
+
+    private final File mFile;
+    private final Writer mWriter;
+
+    /**
+     * Opens the manifest of {@code session} in {@code dir}, appending to an existing one.
+     */
+    SessionManifest(File dir, String session) throws IOException {
+        mFile = new File(dir, session + EXTENSION);
+        mWriter = new OutputStreamWriter(new FileOutputStream(mFile, true), UTF_8);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Appends the checksums of a saved shot.
+     */
+    synchronized void add(List<Entry> entries) throws IOException {
+        for (Entry entry : entries) {
+            mWriter.write(entry.toString());
+            mWriter.write('\n');
+        }
+        mWriter.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+
+    /**
+     * Reads the entries of a manifest.
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    // a line torn by a crash
+                    continue;
+                }
+                String hex = fields[3];
+                byte[] checksum = new byte[hex.length() / 2];
+                for (int i = 0; i < checksum.length; i++) {
+                    checksum[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+                }
+                entries.add(new Entry(fields[0], Long.parseLong(fields[1]), fields[2], checksum));
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+}
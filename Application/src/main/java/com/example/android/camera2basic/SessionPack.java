@@ -0,0 +1,579 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single append-only file holding all frames of a lightstage session, instead of one file per
+ * frame. Creating and closing hundreds of small files is what dominates the write time on some
+ * phones.
+ *
+ * <p>The pack starts with the {@link #MAGIC} and {@link #VERSION} ints, followed by the frames
+ * back to back. Every frame payload is preceded by a record of {@link #FRAME_MAGIC}, the payload
+ * length as a long, the shot index, the bracket, the save time in milliseconds since the epoch,
+ * and the frame's file name as a length prefixed UTF-8 string. Closing the {@link Writer}
+ * appends the index: one entry per frame with the offset of its payload and its length as longs,
+ * followed by the rest of its record. The pack ends with a fixed {@link #TRAILER_BYTES} trailer:
+ * the offset of the index as a long, the frame count, and {@link #INDEX_MAGIC}. All numbers are
+ * big endian. A {@link Reader} finds the trailer from the end of the file and reads any frame
+ * with one positioned read. A pack cut off before its index was written gets one from the frame
+ * records with {@link #recover}.</p>
+ */
+class SessionPack {
+
+    /**
+     * "LSPK" in ASCII.
+     */
+    static final int MAGIC = 0x4c53504b;
+    /**
+     * "LSPX" in ASCII.
+     */
+    static final int INDEX_MAGIC = 0x4c535058;
+    /**
+     * "LSPF" in ASCII.
+     */
+    static final int FRAME_MAGIC = 0x4c535046;
+    static final int VERSION = 2;
+
+    static final int HEADER_BYTES = 8;
+    static final int TRAILER_BYTES = 16;
+    /**
+     * The bytes of a frame record in front of the name.
+     */
+    static final int FRAME_RECORD_BYTES = 4 + 8 + 4 + 4 + 8 + 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The index record of one frame.
+     */
+    static final class Entry {
+
+        /**
+         * The name the frame would have as a file of its own.
+         */
+        final String name;
+        final int shot;
+        final int bracket;
+        final long savedAtMs;
+        final long offset;
+        final long length;
+
+        Entry(String name, int shot, int bracket, long savedAtMs, long offset, long length) {
+            this.name = name;
+            this.shot = shot;
+            this.bracket = bracket;
+            this.savedAtMs = savedAtMs;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * Appends frames to a pack with channel writes. Safe to use from several saver threads.
+     */
+    static class Writer implements Closeable {
+
+        private final File mFile;
+        final RandomAccessFile mRaf;
+        final FileChannel mChannel;
+        private final List<Entry> mEntries = new ArrayList<>();
+        private long mPosition;
+        private boolean mClosed;
+
+        /**
+         * Syncs the pack; the frames of a group share it, so the group costs one sync.
+         */
+        private final GroupCommitter.Target mSyncTarget = new GroupCommitter.Target() {
+
+            @Override
+            public void sync() throws IOException {
+                Writer.this.sync();
+            }
+
+            @Override
+            public void release() {
+                // the pack stays open for the next frames
+            }
+
+        };
+
+        /**
+         * Creates the pack, replacing an existing file.
+         */
+        Writer(File file) throws IOException {
+            mFile = file;
+            mRaf = new RandomAccessFile(file, "rw");
+            mRaf.setLength(0);
+            mChannel = mRaf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(mChannel, header);
+            mPosition = HEADER_BYTES;
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Appends a frame made of the remaining bytes of {@code data}, written with one gather
+         * write, or copied into the mapped window of a {@link MappedWriter}.
+         *
+         * @return The index of the frame within the pack
+         */
+        synchronized int append(String name, int shot, int bracket, ByteBuffer... data)
+                throws IOException {
+            if (mClosed) {
+                throw new IOException("session pack is closed: " + mFile);
+            }
+            long length = 0;
+            for (ByteBuffer buffer : data) {
+                length += buffer.remaining();
+            }
+            long savedAtMs = System.currentTimeMillis();
+            byte[] encodedName = name.getBytes(UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(FRAME_RECORD_BYTES + encodedName.length);
+            record.putInt(FRAME_MAGIC).putLong(length).putInt(shot).putInt(bracket)
+                    .putLong(savedAtMs).putShort((short) encodedName.length).put(encodedName)
+                    .flip();
+            ByteBuffer[] buffers = new ByteBuffer[data.length + 1];
+            buffers[0] = record;
+            System.arraycopy(data, 0, buffers, 1, data.length);
+            long offset = mPosition + record.remaining();
+            writeFrame(mPosition, offset - mPosition + length, buffers);
+            mEntries.add(new Entry(name, shot, bracket, savedAtMs, offset, length));
+            mPosition = offset + length;
+            return mEntries.size() - 1;
+        }
+
+        /**
+         * Writes the {@code length} remaining bytes of {@code data}, the frame record and the
+         * payload, at {@code position}, the end of the frames written so far. The channel is positioned for every frame, since a
+         * partial write of a failed frame leaves it somewhere past the end.
+         */
+        void writeFrame(long position, long length, ByteBuffer[] data) throws IOException {
+            mChannel.position(position);
+            gatherWrite(data);
+        }
+
+        /**
+         * Writes {@code data} at the position of the channel.
+         */
+        void gatherWrite(ByteBuffer[] data) throws IOException {
+            writeFully(mChannel, data);
+        }
+
+        /**
+         * Returns the target a {@link GroupCommitter} syncs the appended frames with.
+         */
+        GroupCommitter.Target syncTarget() {
+            return mSyncTarget;
+        }
+
+        /**
+         * Flushes the appended frames to storage.
+         */
+        void sync() throws IOException {
+            mChannel.force(true);
+        }
+
+        /**
+         * Returns the number of frames appended so far.
+         */
+        synchronized int frameCount() {
+            return mEntries.size();
+        }
+
+        /**
+         * Returns the index records of the frames of {@code shot} appended so far.
+         */
+        synchronized List<Entry> entriesOf(int shot) {
+            List<Entry> entries = new ArrayList<>();
+            for (Entry entry : mEntries) {
+                if (entry.shot == shot) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Returns the number of bytes preallocated for frames that haven't been written yet.
+         */
+        long reservedBytes() {
+            return 0;
+        }
+
+        /**
+         * Returns the number of bytes of the pack so far, not counting the index.
+         */
+        synchronized long bytesWritten() {
+            return mPosition;
+        }
+
+        /**
+         * Appends the index and the trailer, truncates the file behind them, syncs it and closes
+         * it.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                writeIndex(mChannel, mEntries, mPosition);
+            } finally {
+                mChannel.close();
+            }
+        }
+
+    }
+
+    /**
+     * Appends frames to a pack that is preallocated for the expected size of the session, by
+     * copying them into a memory-mapped window of the file. Preallocating the blocks up front keeps
+     * the write latency steady and the file unfragmented as the storage fills up. A session that
+     * outgrows the preallocation simply extends the file. Closing the writer truncates the file
+     * to the bytes used.
+     */
+    static class MappedWriter extends Writer {
+
+        private static final String TAG = "SessionPack";
+
+        /**
+         * The size of the mapped windows; frames larger than this get a window of their own.
+         */
+        static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+        private final long mCapacity;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+        /**
+         * The windows written since the last {@link #sync()}.
+         */
+        private final List<MappedByteBuffer> mDirtyWindows = new ArrayList<>();
+
+        /**
+         * Creates the pack, replacing an existing file, and preallocates {@code capacity} bytes.
+         */
+        MappedWriter(File file, long capacity) throws IOException {
+            super(file);
+            mCapacity = capacity;
+            mRaf.setLength(capacity);
+            try {
+                Os.posix_fallocate(mRaf.getFD(), 0, capacity);
+            } catch (ErrnoException e) {
+                // the file stays sparse, which is what a plain Writer gets as well
+                Log.w(TAG, "couldn't preallocate " + capacity + " bytes: " + e.getMessage());
+            }
+        }
+
+        @Override
+        void writeFrame(long position, long length, ByteBuffer[] data) throws IOException {
+            if (mWindow == null || position + length > mWindowStart + mWindow.capacity()) {
+                mWindowStart = position;
+                mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                        Math.max(WINDOW_BYTES, length));
+            }
+            if (mDirtyWindows.isEmpty()
+                    || mDirtyWindows.get(mDirtyWindows.size() - 1) != mWindow) {
+                mDirtyWindows.add(mWindow);
+            }
+            mWindow.position((int) (position - mWindowStart));
+            for (ByteBuffer buffer : data) {
+                mWindow.put(buffer);
+            }
+        }
+
+        @Override
+        long reservedBytes() {
+            return Math.max(0, mCapacity - bytesWritten());
+        }
+
+        @Override
+        void sync() throws IOException {
+            List<MappedByteBuffer> dirty;
+            synchronized (this) {
+                dirty = new ArrayList<>(mDirtyWindows);
+                mDirtyWindows.clear();
+            }
+            for (MappedByteBuffer window : dirty) {
+                window.force();
+            }
+            super.sync();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            mWindow = null;
+            mDirtyWindows.clear();
+            super.close();
+        }
+
+    }
+
+    /**
+     * Reads single frames of a closed pack without scanning it.
+     */
+    static class Reader implements Closeable {
+
+        private final FileChannel mChannel;
+        private final List<Entry> mEntries;
+
+        Reader(File file) throws IOException {
+            mChannel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                mEntries = readIndex(mChannel);
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        int frameCount() {
+            return mEntries.size();
+        }
+
+        Entry entry(int index) {
+            return mEntries.get(index);
+        }
+
+        /**
+         * Returns the index of the frame called {@code name}, or -1.
+         */
+        int indexOf(String name) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.get(i).name.equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the payload of frame {@code index}.
+         */
+        ByteBuffer readFrame(int index) throws IOException {
+            Entry entry = mEntries.get(index);
+            ByteBuffer frame = ByteBuffer.allocate((int) entry.length);
+            readFully(mChannel, frame, entry.offset);
+            frame.flip();
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+    }
+
+    /**
+     * Returns the bytes of the frame record of a frame called {@code name}.
+     */
+    static int recordBytes(String name) {
+        return FRAME_RECORD_BYTES + name.getBytes(UTF_8).length;
+    }
+
+    /**
+     * Writes the index of a pack that was cut off before it was closed, e.g. by a crash, so a
+     * {@link Reader} can read it. The frames of the shots up to {@code lastShot}, which the
+     * session journal says were saved, are found from their frame records; the frames of later
+     * shots may be torn and are taken again, so they are left out. A pack that has an index
+     * already is left alone.
+     *
+     * @return The number of frames in the index
+     */
+    static int recover(File file, int lastShot) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            try {
+                return readIndex(channel).size();
+            } catch (IOException e) {
+                // no index, so the pack was cut off
+            }
+            List<Entry> entries = new ArrayList<>();
+            long end = HEADER_BYTES;
+            for (Entry entry : scanFrames(channel)) {
+                if (entry.shot <= lastShot) {
+                    entries.add(entry);
+                    end = Math.max(end, entry.offset + entry.length);
+                }
+            }
+            writeIndex(channel, entries, end);
+            return entries.size();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the frame records of a pack from the start, up to the first one that is missing or
+     * torn, e.g. the zeroes of a preallocation.
+     */
+    static List<Entry> scanFrames(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            throw new IOException("not a session pack");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("not a session pack of version " + VERSION);
+        }
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer record = ByteBuffer.allocate(FRAME_RECORD_BYTES);
+        long position = HEADER_BYTES;
+        while (position + FRAME_RECORD_BYTES <= size) {
+            record.clear();
+            readFully(channel, record, position);
+            record.flip();
+            if (record.getInt() != FRAME_MAGIC) {
+                break;
+            }
+            long length = record.getLong();
+            int shot = record.getInt();
+            int bracket = record.getInt();
+            long savedAtMs = record.getLong();
+            ByteBuffer name = ByteBuffer.allocate(record.getShort() & 0xffff);
+            long offset = position + FRAME_RECORD_BYTES + name.capacity();
+            if (length < 0 || offset + length > size) {
+                break;
+            }
+            readFully(channel, name, position + FRAME_RECORD_BYTES);
+            entries.add(new Entry(new String(name.array(), UTF_8), shot, bracket, savedAtMs,
+                    offset, length));
+            position = offset + length;
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the index of {@code entries} and the trailer at {@code position}, truncates the file
+     * behind them and syncs it.
+     */
+    private static void writeIndex(FileChannel channel, List<Entry> entries, long position)
+            throws IOException {
+        ByteBuffer index = encodeIndex(entries, position);
+        long end = position + index.remaining();
+        while (index.hasRemaining()) {
+            position += channel.write(index, position);
+        }
+        channel.truncate(end);
+        channel.force(true);
+    }
+
+    static ByteBuffer encodeIndex(List<Entry> entries, long indexOffset) {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        int size = TRAILER_BYTES;
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(UTF_8);
+            names.add(name);
+            size += 8 + 8 + 4 + 4 + 8 + 2 + name.length;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            index.putLong(entry.offset).putLong(entry.length).putInt(entry.shot)
+                    .putInt(entry.bracket).putLong(entry.savedAtMs)
+                    .putShort((short) names.get(i).length).put(names.get(i));
+        }
+        index.putLong(indexOffset).putInt(entries.size()).putInt(INDEX_MAGIC);
+        index.flip();
+        return index;
+    }
+
+    static List<Entry> readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES + TRAILER_BYTES) {
+            throw new IOException("not a session pack, or not closed");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+        readFully(channel, trailer, size - TRAILER_BYTES);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != INDEX_MAGIC || indexOffset < HEADER_BYTES
+                || indexOffset > size - TRAILER_BYTES) {
+            throw new IOException("session pack has no index");
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) (size - TRAILER_BYTES - indexOffset));
+        readFully(channel, index, indexOffset);
+        index.flip();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = index.getLong();
+            long length = index.getLong();
+            int shot = index.getInt();
+            int bracket = index.getInt();
+            long savedAtMs = index.getLong();
+            byte[] name = new byte[index.getShort() & 0xffff];
+            index.get(name);
+            entries.add(new Entry(new String(name, UTF_8), shot, bracket, savedAtMs, offset,
+                    length));
+        }
+        return entries;
+    }
+
+    /**
+     * Writes all remaining bytes of {@code data}.
+     *
+     * @return The number of bytes written
+     */
+    static long writeFully(FileChannel channel, ByteBuffer... data) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : data) {
+            remaining += buffer.remaining();
+        }
+        long length = remaining;
+        while (remaining > 0) {
+            remaining -= channel.write(data);
+        }
+        return length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CameraAccessException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches immutable still capture requests by their capture settings, so the metadata of a request
+ * is built once per session instead of once per frame.
+ *
+ * @param <R> The request type, e.g. {@link android.hardware.camera2.CaptureRequest}
+ */
+class StillRequestCache<R> {
+
+    /**
+     * Builds the request for a {@link Key} on a cache miss.
+     */
+    interface Factory<R> {
+        R create(Key key) throws CameraAccessException;
+    }
+
+    /**
+     * The capture settings a cached still request was built with.
+     */
+    static final class Key {
+
+        /**
+         * Exposure time in seconds.
+         */
+        final float exposureTime;
+        final int sensitivity;
+        final byte jpegQuality;
+        final int jpegOrientation;
+
+        Key(float exposureTime, int sensitivity, byte jpegQuality, int jpegOrientation) {
+            this.exposureTime = exposureTime;
+            this.sensitivity = sensitivity;
+            this.jpegQuality = jpegQuality;
+            this.jpegOrientation = jpegOrientation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Float.floatToIntBits(exposureTime) == Float.floatToIntBits(other.exposureTime)
+                    && sensitivity == other.sensitivity
+                    && jpegQuality == other.jpegQuality
+                    && jpegOrientation == other.jpegOrientation;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(exposureTime);
+            result = 31 * result + sensitivity;
+            result = 31 * result + jpegQuality;
+            result = 31 * result + jpegOrientation;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "exposure " + exposureTime + "s, ISO " + sensitivity + ", JPEG quality "
+                    + jpegQuality + ", orientation " + jpegOrientation;
+        }
+
+    }
+
+    private final Map<Key, R> mRequests = new ConcurrentHashMap<>();
+
+    private final Factory<R> mFactory;
+
+    StillRequestCache(Factory<R> factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * Returns the cached request for {@code key}, building it first if it isn't cached yet.
+     */
+    R get(Key key) throws CameraAccessException {
+        R request = mRequests.get(key);
+        if (null == request) {
+            request = mFactory.create(key);
+            mRequests.put(key, request);
+        }
+        return request;
+    }
+
+    /**
+     * Drops all cached requests and builds the requests for {@code keys}. This should be called
+     * at the start of a session, before the first shot is triggered.
+     */
+    void prime(Iterable<Key> keys) throws CameraAccessException {
+        mRequests.clear();
+        for (Key key : keys) {
+            get(key);
+        }
+    }
+
+    /**
+     * Drops all cached requests. The requests target the surfaces of the current camera session,
+     * so this has to be called when the session goes away.
+     */
+    void clear() {
+        mRequests.clear();
+    }
+
+}
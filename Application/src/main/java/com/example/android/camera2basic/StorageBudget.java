@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+
+/**
+ * Keeps track of how many more shots fit into the free storage, so a session that won't fit is
+ * shrunk or rejected before it starts and the operator is warned before the storage runs out,
+ * instead of the shots failing one by one.
+ *
+ * <p>The size of a shot is estimated from the bytes of the shots saved recently, as a moving
+ * average; until the first shot is saved a worst-case estimate is used.</p>
+ */
+class StorageBudget {
+
+    /**
+     * Where the session is saved.
+     */
+    interface Storage {
+
+        /**
+         * Returns the number of bytes that can still be written.
+         */
+        long availableBytes();
+
+    }
+
+    /**
+     * The weight of the latest shot in the moving average of the shot size.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final Storage mStorage;
+    private final long mReserveBytes;
+    private double mShotBytes;
+    private int mShotsSaved;
+
+    /**
+     * @param storage           Where the session is saved
+     * @param reserveBytes      The number of bytes to always leave free
+     * @param initialShotBytes  The estimated size of a shot until one has been saved
+     */
+    StorageBudget(Storage storage, long reserveBytes, long initialShotBytes) {
+        mStorage = storage;
+        mReserveBytes = reserveBytes;
+        mShotBytes = initialShotBytes;
+    }
+
+    /**
+     * Returns the storage of {@code dir}.
+     */
+    static Storage forDirectory(final File dir) {
+        return new Storage() {
+            @Override
+            public long availableBytes() {
+                return dir.getUsableSpace();
+            }
+        };
+    }
+
+    /**
+     * Records the size of a saved shot.
+     */
+    synchronized void onShotSaved(long bytes) {
+        mShotBytes = mShotsSaved == 0 ? bytes : SMOOTHING * bytes + (1 - SMOOTHING) * mShotBytes;
+        mShotsSaved++;
+    }
+
+    /**
+     * Returns the estimated size of a shot.
+     */
+    synchronized long shotBytes() {
+        return (long) Math.ceil(mShotBytes);
+    }
+
+    /**
+     * Returns how many more shots fit into the storage.
+     */
+    int shotsLeft() {
+        long available = mStorage.availableBytes() - mReserveBytes;
+        long shotBytes = Math.max(1, shotBytes());
+        return available <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, available / shotBytes);
+    }
+
+    /**
+     * Returns how many of {@code shots} shots fit into the storage.
+     */
+    int admit(int shots) {
+        return Math.min(shots, shotsLeft());
+    }
+
+}
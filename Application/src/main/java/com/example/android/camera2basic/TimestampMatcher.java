@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pairs two things that arrive independently for the same capture, such as a RAW image and its
+ * {@link android.hardware.camera2.TotalCaptureResult}, by their sensor timestamp. Each kind
+ * arrives in capture order, so once one side reaches a timestamp, the unmatched things of the
+ * other side before it will never be matched. They are dropped rather than kept forever, and
+ * dropped first halves go to {@link Listener#onFirstDropped} to be released.
+ *
+ * @param <A> The first kind of thing
+ * @param <B> The second kind of thing
+ */
+class TimestampMatcher<A, B> {
+
+    /**
+     * Receives the pairs. Called on the thread that delivered the second half of the pair.
+     */
+    interface Listener<A, B> {
+        void onMatched(long timestampNs, A a, B b);
+
+        /**
+         * The second half of {@code a} never arrived. Called on the thread that delivered a
+         * later second half.
+         */
+        void onFirstDropped(long timestampNs, A a);
+    }
+
+    private final TreeMap<Long, A> mFirsts = new TreeMap<>();
+    private final TreeMap<Long, B> mSeconds = new TreeMap<>();
+    private final Listener<A, B> mListener;
+
+    TimestampMatcher(Listener<A, B> listener) {
+        mListener = listener;
+    }
+
+    void offerFirst(long timestampNs, A a) {
+        B b;
+        synchronized (this) {
+            // the seconds before this one lost their first half
+            mSeconds.headMap(timestampNs).clear();
+            b = mSeconds.remove(timestampNs);
+            if (b == null) {
+                mFirsts.put(timestampNs, a);
+                return;
+            }
+        }
+        mListener.onMatched(timestampNs, a, b);
+    }
+
+    void offerSecond(long timestampNs, B b) {
+        A a;
+        List<Long> droppedTimestamps = null;
+        List<A> dropped = null;
+        synchronized (this) {
+            Map<Long, A> stale = mFirsts.headMap(timestampNs);
+            if (!stale.isEmpty()) {
+                droppedTimestamps = new ArrayList<>(stale.keySet());
+                dropped = new ArrayList<>(stale.values());
+                stale.clear();
+            }
+            a = mFirsts.remove(timestampNs);
+            if (a == null) {
+                mSeconds.put(timestampNs, b);
+            }
+        }
+        if (dropped != null) {
+            for (int i = 0; i < dropped.size(); i++) {
+                mListener.onFirstDropped(droppedTimestamps.get(i), dropped.get(i));
+            }
+        }
+        if (a != null) {
+            mListener.onMatched(timestampNs, a, b);
+        }
+    }
+
+    /**
+     * Returns the number of things still waiting for their other half.
+     */
+    synchronized int unmatched() {
+        return mFirsts.size() + mSeconds.size();
+    }
+
+    /**
+     * Drops everything still waiting for its other half.
+     *
+     * @return The unmatched first halves, so the caller can release them
+     */
+    synchronized Iterable<A> clear() {
+        Iterable<A> firsts = new ArrayList<>(mFirsts.values());
+        mFirsts.clear();
+        mSeconds.clear();
+        return firsts;
+    }
+
+}
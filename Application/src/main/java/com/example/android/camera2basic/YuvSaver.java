@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dumps the planes of a YUV_420_888 image into the file of its {@link LightstageShot.Frame},
+ * skipping the hardware JPEG encoder. The planes are written as they come out of the camera with
+ * one gather write, so there is no copy into a {@code byte[]}.
+ *
+ * <p>The file starts with a big endian header: the {@link #MAGIC} int, the {@link #VERSION} int,
+ * the width, the height and the plane count, followed by the row stride, the pixel stride and the
+ * byte length of every plane. The plane bytes follow in plane order (Y, U, V). A reader rebuilds
+ * pixel (x, y) of a plane from {@code y * rowStride + x * pixelStride}; the chroma planes are
+ * subsampled by two in both directions.</p>
+ */
+class YuvSaver implements Runnable {
+
+    private static final String TAG = "YuvSaver";
+
+    /**
+     * "LSYV" in ASCII.
+     */
+    static final int MAGIC = 0x4c535956;
+    static final int VERSION = 1;
+
+    /**
+     * The image, closed once it is saved.
+     */
+    private final AutoCloseable mImage;
+    private final int mWidth;
+    private final int mHeight;
+    /**
+     * The plane buffers of {@link #mImage}.
+     */
+    private final ByteBuffer[] mPlanes;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+    /**
+     * The shot frame the image belongs to.
+     */
+    private final LightstageShot.Frame mFrame;
+    /**
+     * Records the time it took to save the image.
+     */
+    private final CaptureTimings mTimings;
+    private final ImageSaver.Callback mCallback;
+
+    YuvSaver(AutoCloseable image, int width, int height, ByteBuffer[] planes, int[] rowStrides,
+             int[] pixelStrides, LightstageShot.Frame frame, CaptureTimings timings,
+             ImageSaver.Callback callback) {
+        mImage = image;
+        mWidth = width;
+        mHeight = height;
+        mPlanes = planes;
+        mRowStrides = rowStrides;
+        mPixelStrides = pixelStrides;
+        mFrame = frame;
+        mTimings = timings;
+        mCallback = callback;
+    }
+
+    /**
+     * Creates the saver for a YUV_420_888 {@link Image}.
+     *
+     * @param imageHandle Closes {@code image} once it is saved
+     */
+    static YuvSaver forImage(Image image, AutoCloseable imageHandle, LightstageShot.Frame frame,
+                             CaptureTimings timings, ImageSaver.Callback callback) {
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer[] buffers = new ByteBuffer[planes.length];
+        int[] rowStrides = new int[planes.length];
+        int[] pixelStrides = new int[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            buffers[i] = planes[i].getBuffer();
+            rowStrides[i] = planes[i].getRowStride();
+            pixelStrides[i] = planes[i].getPixelStride();
+        }
+        return new YuvSaver(imageHandle, image.getWidth(), image.getHeight(), buffers, rowStrides,
+                pixelStrides, frame, timings, callback);
+    }
+
+    /**
+     * Returns the size of the header of a file with {@code planes} planes.
+     */
+    static int headerBytes(int planes) {
+        return 4 * (5 + 3 * planes);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer[] buffers = new ByteBuffer[mPlanes.length + 1];
+        ByteBuffer header = ByteBuffer.allocate(headerBytes(mPlanes.length));
+        header.putInt(MAGIC).putInt(VERSION).putInt(mWidth).putInt(mHeight)
+                .putInt(mPlanes.length);
+        long remaining = header.capacity();
+        for (int i = 0; i < mPlanes.length; i++) {
+            header.putInt(mRowStrides[i]).putInt(mPixelStrides[i])
+                    .putInt(mPlanes[i].remaining());
+            buffers[i + 1] = mPlanes[i];
+            remaining += mPlanes[i].remaining();
+        }
+        header.flip();
+        buffers[0] = header;
+        long bytes = remaining;
+        FrameChecksum checksum = mFrame.shot.newChecksum();
+        if (null != checksum) {
+            checksum.update(buffers);
+        }
+
+        GroupCommitter.Target target = null;
+        IOException failure = null;
+
+        try {
+            if (null != mFrame.shot.pack) {
+                mFrame.shot.pack.append(mFrame.file.getName(), mFrame.shot.index,
+                        mFrame.bracket, buffers);
+                remaining = 0;
+                target = mFrame.shot.pack.syncTarget();
+            } else {
+                FileChannel channel = new FileOutputStream(mFrame.file).getChannel();
+                target = GroupCommitter.fileTarget(channel);
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.d(TAG, "something went wrong during file save");
+            failure = e;
+        } finally {
+            try {
+                mImage.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        mTimings.imageSaved(mFrame.imageAvailableNs);
+        if (null != checksum && null == failure) {
+            mFrame.setChecksum(mFrame.file, bytes, checksum);
+        }
+        mFrame.shot.onFrameWritten(mFrame, target, bytes - remaining, failure, mCallback);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A bounded buffer of streamed full resolution frames for zero-shutter-lag captures. A trigger
+ * picks the first frame whose sensor timestamp is not before the trigger time; every frame that
+ * can't be picked anymore is released right away, so the buffer never holds more than its depth.
+ *
+ * @param <T> The frame type, e.g. {@link android.media.Image}
+ */
+class ZslRingBuffer<T> {
+
+    /**
+     * Access to the timestamp and the release of a frame.
+     */
+    interface Frames<T> {
+
+        /**
+         * Returns the sensor timestamp of {@code frame} in nanoseconds.
+         */
+        long timestampOf(T frame);
+
+        /**
+         * Releases a frame that wasn't picked by any trigger.
+         */
+        void release(T frame);
+
+    }
+
+    /**
+     * Receives the frame picked for a trigger. The callback owns the frame from then on.
+     */
+    interface Callback<T> {
+        void onFramePicked(T frame);
+    }
+
+    private static final class Trigger<T> {
+
+        final long notBeforeNs;
+        final Callback<T> callback;
+
+        Trigger(long notBeforeNs, Callback<T> callback) {
+            this.notBeforeNs = notBeforeNs;
+            this.callback = callback;
+        }
+
+    }
+
+    private final Frames<T> mFrames;
+    private final int mDepth;
+    private final ArrayDeque<T> mBuffer;
+    private final ArrayDeque<Trigger<T>> mTriggers = new ArrayDeque<>();
+    /**
+     * The frames {@link #offer} picked and their callbacks, reused for every streamed frame.
+     */
+    private final List<T> mOfferPicked = new ArrayList<>();
+    private final List<Callback<T>> mOfferCallbacks = new ArrayList<>();
+
+    /**
+     * The latest trigger time seen so far; triggers are matched in order, so their times never go
+     * backwards.
+     */
+    private long mLastTriggerNs = Long.MIN_VALUE;
+
+    /**
+     * @param frames Access to the frame timestamps
+     * @param depth  The maximum number of frames held while no trigger is pending
+     */
+    ZslRingBuffer(Frames<T> frames, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        mFrames = frames;
+        mDepth = depth;
+        mBuffer = new ArrayDeque<>(depth + 1);
+    }
+
+    /**
+     * Adds a newly streamed frame, handing it to a pending trigger if it matches one. Frames are
+     * offered by the one thread that streams them.
+     */
+    void offer(T frame) {
+        synchronized (this) {
+            mBuffer.addLast(frame);
+            match(mOfferPicked, mOfferCallbacks);
+            while (mBuffer.size() > mDepth) {
+                mFrames.release(mBuffer.pollFirst());
+            }
+        }
+        if (!mOfferPicked.isEmpty()) {
+            try {
+                dispatch(mOfferPicked, mOfferCallbacks);
+            } finally {
+                mOfferPicked.clear();
+                mOfferCallbacks.clear();
+            }
+        }
+    }
+
+    /**
+     * Requests the first frame whose timestamp is at or after {@code notBeforeNs}. The callback is
+     * invoked as soon as such a frame is buffered, which may be right away.
+     *
+     * @param notBeforeNs The trigger time plus the light settle time, in the sensor timebase
+     * @param callback    Receives the picked frame
+     */
+    void trigger(long notBeforeNs, Callback<T> callback) {
+        List<T> picked = new ArrayList<>();
+        List<Callback<T>> callbacks = new ArrayList<>();
+        synchronized (this) {
+            mLastTriggerNs = Math.max(mLastTriggerNs, notBeforeNs);
+            mTriggers.addLast(new Trigger<>(mLastTriggerNs, callback));
+            match(picked, callbacks);
+        }
+        dispatch(picked, callbacks);
+    }
+
+    /**
+     * Returns the number of triggers that are still waiting for a frame.
+     */
+    synchronized int pendingTriggers() {
+        return mTriggers.size();
+    }
+
+    /**
+     * Releases all buffered frames and drops the pending triggers.
+     */
+    synchronized void clear() {
+        for (T frame : mBuffer) {
+            mFrames.release(frame);
+        }
+        mBuffer.clear();
+        mTriggers.clear();
+        mLastTriggerNs = Long.MIN_VALUE;
+    }
+
+    private void match(List<T> picked, List<Callback<T>> callbacks) {
+        while (!mTriggers.isEmpty()) {
+            Trigger<T> trigger = mTriggers.peekFirst();
+            // Frames before the oldest pending trigger can't match any later trigger either.
+            Iterator<T> it = mBuffer.iterator();
+            while (it.hasNext()) {
+                T frame = it.next();
+                if (mFrames.timestampOf(frame) >= trigger.notBeforeNs) {
+                    break;
+                }
+                it.remove();
+                mFrames.release(frame);
+            }
+            if (mBuffer.isEmpty()) {
+                return;
+            }
+            mTriggers.pollFirst();
+            picked.add(mBuffer.pollFirst());
+            callbacks.add(trigger.callback);
+        }
+    }
+
+    private void dispatch(List<T> picked, List<Callback<T>> callbacks) {
+        for (int i = 0; i < picked.size(); i++) {
+            callbacks.get(i).onFramePicked(picked.get(i));
+        }
+    }
+
+}
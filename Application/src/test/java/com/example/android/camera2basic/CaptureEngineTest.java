@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plain JVM tests for {@link CaptureEngine} and its {@link CaptureTimings}.
+ */
+public class CaptureEngineTest {
+
+    private static final long MS = 1000000L;
+
+    private long mNow;
+    private int mPrecaptures;
+    private int mStills;
+    private int mFocusLocks;
+    private CaptureTimings mTimings;
+    private CaptureEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mTimings = new CaptureTimings(new CaptureTimings.Clock() {
+            @Override
+            public long nanoTime() {
+                return mNow;
+            }
+        });
+        mEngine = new CaptureEngine(new CaptureEngine.Listener() {
+            @Override
+            public void onRunPrecapture() {
+                mPrecaptures++;
+            }
+
+            @Override
+            public void onCaptureStill() {
+                mStills++;
+            }
+
+            @Override
+            public void onFocusLocked() {
+                mFocusLocks++;
+            }
+        }, mTimings);
+    }
+
+    @Test
+    public void previewIgnoresResults() {
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(0, mStills);
+        assertEquals(CaptureEngine.STATE_PREVIEW, mEngine.getState());
+    }
+
+    @Test
+    public void lockedAndConvergedCapturesRightAway() {
+        mEngine.lockFocus();
+        mNow += 30 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_INACTIVE, null);
+        assertEquals(0, mStills);
+        mNow += 20 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(1, mStills);
+        assertEquals(0, mPrecaptures);
+        assertEquals(CaptureEngine.STATE_PICTURE_TAKEN, mEngine.getState());
+        assertEquals(1, mTimings.count(CaptureTimings.Phase.AF_LOCK));
+        assertEquals(50 * MS, mTimings.totalNanos(CaptureTimings.Phase.AF_LOCK));
+    }
+
+    @Test
+    public void primingLockTakesNoPicture() {
+        mEngine.primeFocus();
+        mNow += 30 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_INACTIVE,
+                CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        assertEquals(0, mFocusLocks);
+        assertEquals(CaptureEngine.STATE_WAITING_PRIMING_LOCK, mEngine.getState());
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        assertEquals(1, mFocusLocks);
+        assertEquals(0, mStills);
+        assertEquals(0, mPrecaptures);
+        assertEquals(CaptureEngine.STATE_PREVIEW, mEngine.getState());
+        assertEquals(30 * MS, mTimings.totalNanos(CaptureTimings.Phase.AF_LOCK));
+
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals("the lock is only reported once", 1, mFocusLocks);
+    }
+
+    @Test
+    public void missingAfStateCapturesRightAway() {
+        mEngine.lockFocus();
+        mEngine.onResult(null, null);
+        assertEquals(1, mStills);
+    }
+
+    @Test
+    public void unconvergedExposureRunsPrecaptureSequence() {
+        mEngine.lockFocus();
+        mNow += 10 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        assertEquals(1, mPrecaptures);
+        assertEquals(CaptureEngine.STATE_WAITING_PRECAPTURE, mEngine.getState());
+
+        mNow += 40 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
+        assertEquals(CaptureEngine.STATE_WAITING_NON_PRECAPTURE, mEngine.getState());
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
+        assertEquals(0, mStills);
+
+        mNow += 60 * MS;
+        mEngine.onResult(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(1, mStills);
+        assertEquals(10 * MS, mTimings.totalNanos(CaptureTimings.Phase.AF_LOCK));
+        assertEquals(100 * MS, mTimings.totalNanos(CaptureTimings.Phase.PRECAPTURE));
+    }
+
+    @Test
+    public void lockedFocusOnlyWaitsForExposure() {
+        mEngine.waitForExposure();
+        mNow += 5 * MS;
+        mEngine.onResult(null, CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(1, mStills);
+        assertEquals(0, mTimings.count(CaptureTimings.Phase.AF_LOCK));
+        assertEquals(5 * MS, mTimings.totalNanos(CaptureTimings.Phase.PRECAPTURE));
+
+        mEngine.onResult(null, CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals("a taken picture isn't taken again", 1, mStills);
+        mEngine.reset();
+        assertEquals(CaptureEngine.STATE_PREVIEW, mEngine.getState());
+    }
+
+    @Test
+    public void timesImagesInSubmissionOrder() {
+        mTimings.stillsSubmitted(2);
+        mNow += 100 * MS;
+        long first = mTimings.imageAvailable();
+        mNow += 20 * MS;
+        long second = mTimings.imageAvailable();
+        // the savers finish the second image first
+        mNow += 300 * MS;
+        mTimings.imageSaved(second);
+        mNow += 30 * MS;
+        mTimings.imageSaved(first);
+        mTimings.imageSaved(CaptureTimings.NOT_AVAILABLE);
+
+        assertEquals(2, mTimings.count(CaptureTimings.Phase.CAPTURE_TO_IMAGE));
+        assertEquals(100 * MS, mTimings.minNanos(CaptureTimings.Phase.CAPTURE_TO_IMAGE));
+        assertEquals(120 * MS, mTimings.maxNanos(CaptureTimings.Phase.CAPTURE_TO_IMAGE));
+        assertEquals(2, mTimings.count(CaptureTimings.Phase.IMAGE_TO_SAVED));
+        assertEquals(300 * MS, mTimings.minNanos(CaptureTimings.Phase.IMAGE_TO_SAVED));
+        assertEquals(350 * MS, mTimings.maxNanos(CaptureTimings.Phase.IMAGE_TO_SAVED));
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes {@link CaptureMetadataLog}s and exports them as CSV.
+ */
+public class CaptureMetadataLogTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+    }
+
+    @Test
+    public void exportsEveryRecordAsCsv() throws IOException {
+        CaptureMetadataLog log = new CaptureMetadataLog(mDir, "session");
+        CaptureMetadataLog.Record record = new CaptureMetadataLog.Record();
+        // more than one buffer full
+        for (int i = 0; i < 100; i++) {
+            record.clear();
+            record.shot = i;
+            record.bracket = i % 3;
+            record.requestedExposureNs = 50000000L;
+            record.exposureNs = 49990000L;
+            record.sensitivity = 100;
+            record.focusDistance = 2.5f;
+            log.append(record);
+        }
+        log.close();
+        assertEquals(CaptureMetadataLog.HEADER_BYTES + 100 * CaptureMetadataLog.RECORD_BYTES,
+                log.getFile().length());
+
+        // a resumed session appends after the records of the first run
+        log = new CaptureMetadataLog(mDir, "session");
+        record.clear();
+        record.shot = 100;
+        log.append(record);
+        log.close();
+
+        String[] lines = export(log.getFile());
+        assertEquals(1 + 101, lines.length);
+        assertTrue(lines[0].startsWith("shot,bracket,frame_number"));
+        assertEquals("42,0,-1,-1,50000000,49990000,-1,100,2.5,-1.0,-1,-1,-1", lines[43]);
+        assertTrue(lines[101].startsWith("100,-1,"));
+    }
+
+    @Test
+    public void reopeningDropsATornRecord() throws IOException {
+        CaptureMetadataLog log = new CaptureMetadataLog(mDir, "session");
+        CaptureMetadataLog.Record record = new CaptureMetadataLog.Record();
+        record.clear();
+        log.append(record);
+        log.append(record);
+        log.close();
+        RandomAccessFile raf = new RandomAccessFile(log.getFile(), "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        assertEquals(1 + 1, export(log.getFile()).length);
+        log = new CaptureMetadataLog(mDir, "session");
+        log.append(record);
+        log.close();
+        assertEquals(1 + 2, export(log.getFile()).length);
+    }
+
+    private static String[] export(File file) throws IOException {
+        StringWriter csv = new StringWriter();
+        CaptureMetadataLog.exportCsv(file, csv);
+        return csv.toString().split("\n");
+    }
+
+}
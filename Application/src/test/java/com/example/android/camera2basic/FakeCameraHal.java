@@ -0,0 +1,318 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simulated camera for benchmarking the capture pipeline without a device. It stands in for
+ * the {@code CameraDevice}, the {@code CameraCaptureSession} and the {@code ImageReader}: a
+ * repeating request emits AF/AE states every frame, the focus lock and precapture triggers walk
+ * through configurable state sequences, and still captures deliver synthetic JPEG payloads after
+ * a configurable latency. The repeating request can also stream an image every frame, as it does
+ * in ZSL mode. Like a real {@code ImageReader}, {@link #acquireNextImage()} throws once
+ * {@link Latencies#maxImages} images are acquired and not closed; the fake counts these
+ * {@link #readerOverflows()} instead of crashing its camera thread. Single stills can be made to
+ * fail without an image, like a {@code CaptureFailure} whose image wasn't captured.
+ */
+class FakeCameraHal {
+
+    /**
+     * The simulated timings of the camera.
+     */
+    static class Latencies {
+        /**
+         * Time between two results of the repeating request.
+         */
+        long frameIntervalMs = 5;
+        /**
+         * Number of frames the AF scans before it reports a lock.
+         */
+        int afLockFrames = 3;
+        /**
+         * Number of frames the AE reports precapture after a precapture trigger.
+         */
+        int precaptureFrames = 2;
+        /**
+         * Time from submitting a still until its JPEG is available.
+         */
+        long captureLatencyMs = 10;
+        /**
+         * Size of the synthetic JPEG payloads.
+         */
+        int jpegBytes = 256 * 1024;
+        /**
+         * Capacity of the simulated {@code ImageReader}.
+         */
+        int maxImages = 2;
+    }
+
+    /**
+     * Receives the AF and AE states of every simulated capture result.
+     */
+    interface ResultListener {
+        void onResult(Integer afState, Integer aeState);
+    }
+
+    /**
+     * Told about every simulated image, like {@code ImageReader.OnImageAvailableListener}. The
+     * listener acquires the image with {@link #acquireNextImage()} and owns it until it closes it.
+     */
+    interface ImageListener {
+        void onImageAvailable(FakeCameraHal reader);
+    }
+
+    /**
+     * Receives the outcome of every still, in the order of the requests, before its image.
+     */
+    interface StillListener {
+        void onStillCompleted();
+
+        void onStillFailed();
+    }
+
+    /**
+     * A simulated JPEG image.
+     */
+    class FakeImage implements AutoCloseable {
+
+        final ByteBuffer jpeg;
+        final long timestampNs;
+        private boolean mClosed;
+
+        FakeImage(ByteBuffer jpeg, long timestampNs) {
+            this.jpeg = jpeg;
+            this.timestampNs = timestampNs;
+        }
+
+        @Override
+        public void close() {
+            synchronized (FakeCameraHal.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mAcquired--;
+            }
+        }
+
+    }
+
+    private final Latencies mLatencies;
+    private final ScheduledExecutorService mCameraThread =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Random mRandom = new Random(42);
+
+    private ResultListener mResultListener;
+    private ImageListener mImageListener;
+    private StillListener mStillListener;
+
+    private int mAfState = CaptureResult.CONTROL_AF_STATE_INACTIVE;
+    private int mAeState = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+    private int mAfFramesLeft;
+    private int mPrecaptureFramesLeft;
+
+    private int mAcquired;
+    private int mMaxAcquired;
+    private int mOverflows;
+    private final ArrayDeque<FakeImage> mQueued = new ArrayDeque<>();
+    private boolean mStreaming;
+    private int mStillsSubmitted;
+    private int mFailingStill = -1;
+
+    FakeCameraHal(Latencies latencies) {
+        mLatencies = latencies;
+    }
+
+    /**
+     * Starts the repeating request.
+     */
+    void open(ResultListener resultListener, ImageListener imageListener) {
+        mResultListener = resultListener;
+        mImageListener = imageListener;
+        mCameraThread.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                emitResult();
+            }
+        }, 0, mLatencies.frameIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the listener told about the outcome of every still.
+     */
+    void setStillListener(StillListener stillListener) {
+        mStillListener = stillListener;
+    }
+
+    /**
+     * Makes the still with the given index, counting every still submitted so far from 0, fail
+     * without an image.
+     */
+    synchronized void failStill(int index) {
+        mFailingStill = index;
+    }
+
+    /**
+     * Makes the repeating request stream an image every frame, or stop doing so.
+     */
+    synchronized void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * Hands out the oldest image that hasn't been acquired yet, like
+     * {@code ImageReader.acquireNextImage}.
+     *
+     * @return The image, or {@code null} if there is none
+     * @throws IllegalStateException if {@link Latencies#maxImages} images are acquired and not
+     *                               closed
+     */
+    synchronized FakeImage acquireNextImage() {
+        if (mAcquired >= mLatencies.maxImages) {
+            mOverflows++;
+            throw new IllegalStateException("maxImages (" + mLatencies.maxImages
+                    + ") has already been acquired, call #close before acquiring more.");
+        }
+        FakeImage image = mQueued.pollFirst();
+        if (image != null) {
+            mAcquired++;
+            mMaxAcquired = Math.max(mMaxAcquired, mAcquired);
+        }
+        return image;
+    }
+
+    void close() throws InterruptedException {
+        mCameraThread.shutdownNow();
+        mCameraThread.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Simulates a capture with {@code CONTROL_AF_TRIGGER_START}.
+     */
+    synchronized void triggerAfLock() {
+        mAfState = CaptureResult.CONTROL_AF_STATE_INACTIVE;
+        mAfFramesLeft = mLatencies.afLockFrames;
+    }
+
+    /**
+     * Simulates a capture with {@code CONTROL_AE_PRECAPTURE_TRIGGER_START}.
+     */
+    synchronized void triggerPrecapture() {
+        mAeState = CaptureResult.CONTROL_AE_STATE_PRECAPTURE;
+        mPrecaptureFramesLeft = mLatencies.precaptureFrames;
+    }
+
+    /**
+     * Simulates {@code capture()} or {@code captureBurst()} of {@code count} still requests. The
+     * stills of a burst follow each other at the frame interval.
+     */
+    void captureStills(int count) {
+        for (int i = 0; i < count; i++) {
+            final boolean fail;
+            synchronized (this) {
+                fail = mStillsSubmitted++ == mFailingStill;
+            }
+            mCameraThread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (fail) {
+                        failStill();
+                    } else {
+                        produceImage();
+                    }
+                }
+            }, mLatencies.captureLatencyMs + i * mLatencies.frameIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the highest number of images that were acquired and not closed at the same time.
+     */
+    synchronized int maxAcquiredImages() {
+        return mMaxAcquired;
+    }
+
+    /**
+     * Returns how many times {@link #acquireNextImage()} threw because the reader was full, each
+     * of which would have crashed the app on a device.
+     */
+    synchronized int readerOverflows() {
+        return mOverflows;
+    }
+
+    private void emitResult() {
+        int afState;
+        int aeState;
+        boolean streaming;
+        synchronized (this) {
+            if (mAfFramesLeft > 0 && --mAfFramesLeft == 0) {
+                mAfState = CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+            }
+            if (mPrecaptureFramesLeft > 0 && --mPrecaptureFramesLeft == 0) {
+                mAeState = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+            }
+            afState = mAfState;
+            aeState = mAeState;
+            streaming = mStreaming;
+        }
+        mResultListener.onResult(afState, aeState);
+        if (streaming) {
+            deliverImage();
+        }
+    }
+
+    private void failStill() {
+        if (mStillListener != null) {
+            mStillListener.onStillFailed();
+        }
+    }
+
+    private void produceImage() {
+        if (mStillListener != null) {
+            mStillListener.onStillCompleted();
+        }
+        deliverImage();
+    }
+
+    private void deliverImage() {
+        byte[] jpeg = new byte[mLatencies.jpegBytes];
+        mRandom.nextBytes(jpeg);
+        // SOI and EOI markers, so the payload at least looks like a JPEG
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        synchronized (this) {
+            mQueued.addLast(new FakeImage(ByteBuffer.wrap(jpeg), System.nanoTime()));
+        }
+        try {
+            mImageListener.onImageAvailable(this);
+        } catch (IllegalStateException e) {
+            // counted in readerOverflows(); the image stays queued like in a real reader
+        }
+    }
+
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs lightstage sessions through the {@link LightstageController}, the {@link CaptureEngine}
+ * or the {@link ZslRingBuffer}, and the {@link ImageSaver} against a {@link FakeCameraHal} and a
+ * lightstage on the loopback interface. No session may acquire more images than the simulated
+ * reader holds. Run with {@code -D}{@value #BENCHMARK_PROPERTY}{@code =true} to also check the
+ * shot cycle stays within its time budget.
+ */
+public class FakeCameraPipelineTest {
+
+    /**
+     * The system property that turns on the wall-clock check, which depends on the machine.
+     */
+    private static final String BENCHMARK_PROPERTY = "pipeline.benchmark";
+
+    /**
+     * Upper bound for the mean time of a shot cycle with the default {@link FakeCameraHal}
+     * latencies, which simulate about 20ms per shot.
+     */
+    private static final long MAX_MEAN_SHOT_CYCLE_MS = 200;
+
+    /**
+     * The ring buffer depth of the ZSL sessions, {@link CaptureConfig#zslBufferDepth}.
+     */
+    private static final int ZSL_BUFFER_DEPTH = 4;
+
+    /**
+     * Gives the ring buffer of the ZSL sessions access to the simulated images.
+     */
+    private static final ZslRingBuffer.Frames<FakeCameraHal.FakeImage> ZSL_IMAGES =
+            new ZslRingBuffer.Frames<FakeCameraHal.FakeImage>() {
+
+                @Override
+                public long timestampOf(FakeCameraHal.FakeImage frame) {
+                    return frame.timestampNs;
+                }
+
+                @Override
+                public void release(FakeCameraHal.FakeImage frame) {
+                    frame.close();
+                }
+
+            };
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private FakeCameraHal.Latencies mLatencies;
+    private FakeCameraHal mHal;
+    private SaverExecutor mSaver;
+    private CaptureTimings mTimings;
+    private ImageQueue mImageQueue;
+    private CaptureEngine mEngine;
+    private LightstageController mController;
+    private final BlockingQueue<LightstageShot.Frame> mPendingFrames = new LinkedBlockingQueue<>();
+    private final BlockingQueue<LightstageShot.Frame> mCapturingFrames =
+            new LinkedBlockingQueue<>();
+    private final ImageSaver.Callback mSaverCallback = new ImageSaver.Callback() {
+        @Override
+        public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+        }
+
+        @Override
+        public void onShotSaved(LightstageShot shot) {
+            if (shot.hasFailed()) {
+                mController.frameFailed(shot.sequence);
+            } else {
+                mController.frameSaved(shot.sequence,
+                        Collections.<SessionManifest.Entry>emptyList());
+            }
+        }
+    };
+    private volatile int mErrors;
+    private volatile boolean mDropped;
+    private volatile ZslRingBuffer<FakeCameraHal.FakeImage> mZslBuffer;
+    private volatile long mSaveDelayMs;
+    private volatile float[] mExposureLadder = new float[0];
+    private int mShotCounter;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.getRoot();
+        mLatencies = new FakeCameraHal.Latencies();
+        mHal = new FakeCameraHal(mLatencies);
+        mSaver = new SaverExecutor("bench-saver", 1, 8);
+        mTimings = new CaptureTimings(CaptureTimings.SYSTEM_CLOCK);
+        mImageQueue = new ImageQueue(mLatencies.maxImages);
+        mEngine = new CaptureEngine(new CaptureEngine.Listener() {
+            @Override
+            public void onRunPrecapture() {
+                mHal.triggerPrecapture();
+            }
+
+            @Override
+            public void onCaptureStill() {
+                int stills = Math.max(1, mExposureLadder.length);
+                mTimings.stillsSubmitted(stills);
+                mHal.captureStills(stills);
+            }
+
+            @Override
+            public void onFocusLocked() {
+            }
+        }, mTimings);
+        mHal.open(new FakeCameraHal.ResultListener() {
+            @Override
+            public void onResult(Integer afState, Integer aeState) {
+                mEngine.onResult(afState, aeState);
+            }
+        }, new FakeCameraHal.ImageListener() {
+            @Override
+            public void onImageAvailable(FakeCameraHal reader) {
+                FakeCameraHal.FakeImage image = reader.acquireNextImage();
+                if (mZslBuffer != null) {
+                    mZslBuffer.offer(image);
+                    return;
+                }
+                save(image, mImageQueue.onImageAcquired(image), mPendingFrames.poll());
+            }
+        });
+        mHal.setStillListener(new FakeCameraHal.StillListener() {
+            @Override
+            public void onStillCompleted() {
+                mCapturingFrames.poll();
+            }
+
+            @Override
+            public void onStillFailed() {
+                // what Camera2BasicFragment.onStillCaptureFailed does
+                LightstageShot.Frame frame = mCapturingFrames.poll();
+                mImageQueue.cancel(1);
+                mPendingFrames.remove(frame);
+                frame.shot.onCaptureFailed(frame, new IOException("capture failed"),
+                        mSaverCallback);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mHal.close();
+        mSaver.shutdownNow();
+        if (mZslBuffer != null) {
+            mZslBuffer.clear();
+        }
+    }
+
+    @Test
+    public void sessionSavesEveryShot() throws Exception {
+        int shots = 20;
+        long start = System.nanoTime();
+        int acks = runSession(shots, new int[0]);
+        long meanCycleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / shots;
+
+        assertEquals(shots, acks);
+        assertEquals(shots, mDir.listFiles().length);
+        for (File file : mDir.listFiles()) {
+            assertEquals(new FakeCameraHal.Latencies().jpegBytes, file.length());
+        }
+        assertEquals(shots, mTimings.count(CaptureTimings.Phase.PRECAPTURE));
+        assertEquals(shots, mTimings.count(CaptureTimings.Phase.IMAGE_TO_SAVED));
+        assertTrue(mHal.maxAcquiredImages() <= mLatencies.maxImages);
+        assertEquals(0, mImageQueue.acquired());
+        if (Boolean.getBoolean(BENCHMARK_PROPERTY)) {
+            assertTrue("mean shot cycle " + meanCycleMs + "ms\n" + mTimings.summary(),
+                    meanCycleMs <= MAX_MEAN_SHOT_CYCLE_MS);
+        }
+    }
+
+    @Test
+    public void bracketedShotIsAcknowledgedOnce() throws Exception {
+        int shots = 5;
+        int acks = runSession(shots, new int[]{12500, 50000});
+
+        assertEquals(shots, acks);
+        assertEquals(shots * 2, mDir.listFiles().length);
+        assertTrue(new File(mDir, LightstageShot.fileName("bench", 4, 1, 2)).exists());
+    }
+
+    @Test
+    public void failedStillFailsItsShot() throws Exception {
+        int shots = 5;
+        mHal.failStill(2);
+        int acks = runSession(shots, new int[0]);
+
+        assertEquals(shots - 1, acks);
+        assertEquals(1, mErrors);
+        assertEquals(shots - 1, mDir.listFiles().length);
+        assertFalse(new File(mDir, LightstageShot.fileName("bench", 2, 0, 1)).exists());
+        assertEquals(0, mImageQueue.acquired());
+        assertTrue(mPendingFrames.isEmpty());
+    }
+
+    @Test
+    public void ladderLongerThanTheReaderIsRejected() throws Exception {
+        int acks = runSession(5, new int[]{12500, 50000, 200000});
+
+        assertEquals(0, acks);
+        assertTrue(mDropped);
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void zslShotsOutrunningTheSaversFitIntoTheReader() throws Exception {
+        int shots = 20;
+        // what Camera2BasicFragment.setUpCameraOutputs sizes in ZSL mode
+        int imageQueueDepth = mLatencies.maxImages;
+        mLatencies.maxImages = imageQueueDepth + ZSL_BUFFER_DEPTH + 1;
+        mImageQueue = new ImageQueue(imageQueueDepth);
+        mZslBuffer = new ZslRingBuffer<>(ZSL_IMAGES, ZSL_BUFFER_DEPTH);
+        // a save takes several frame intervals, so the picked frames pile up
+        mSaveDelayMs = 4 * mLatencies.frameIntervalMs;
+        mHal.setStreaming(true);
+        int acks = runSession(shots, new int[0], true);
+
+        assertEquals(shots, acks);
+        assertEquals(shots, mDir.listFiles().length);
+        assertEquals(imageQueueDepth, mImageQueue.maxAcquired());
+    }
+
+    /**
+     * Hands {@code image} to the saver of {@code frame}, after {@link #mSaveDelayMs}.
+     */
+    private void save(FakeCameraHal.FakeImage image, AutoCloseable handle,
+                      LightstageShot.Frame frame) {
+        frame.imageAvailableNs = mTimings.imageAvailable();
+        final ImageSaver saver = new ImageSaver(handle, image.jpeg, frame, mTimings,
+                mSaverCallback);
+        mSaver.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(mSaveDelayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                saver.run();
+            }
+        });
+    }
+
+    private int runSession(int shots, int[] ladderMicros) throws Exception {
+        return runSession(shots, ladderMicros, false);
+    }
+
+    /**
+     * Runs a session of {@code shots} shots against a lightstage on the loopback interface. A
+     * lightstage that speaks protocol v2 sends as many shots as it is granted credits.
+     *
+     * @return The number of {@link LightstageController#FRAME_SAVED} acks the lightstage got;
+     *         the {@link LightstageController#ERROR}s of failed shots are counted in
+     *         {@link #mErrors}, a dropped connection sets {@link #mDropped}
+     */
+    private int runSession(final int shots, final int[] ladderMicros, final boolean v2)
+            throws Exception {
+        final ServerSocket lightstage = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final int[] acks = new int[1];
+        // an assertion failing on the lightstage thread fails the test once it is joined
+        final Throwable[] failure = new Throwable[1];
+        Thread lightstageThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = lightstage.accept();
+                    // a pipeline that wedged fails the test instead of hanging it
+                    socket.setSoTimeout(10000);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    assertEquals(LightstageController.INIT, in.readByte());
+                    out.writeByte(LightstageController.INIT);
+                    try {
+                        if (ladderMicros.length > 0) {
+                            out.writeByte(LightstageController.EXPOSURE_LADDER);
+                            out.writeByte(ladderMicros.length);
+                            for (int micros : ladderMicros) {
+                                out.writeInt(micros);
+                            }
+                        }
+                        if (v2) {
+                            acks[0] = shootPipelined(in, out, shots);
+                        } else {
+                            acks[0] = shootLockstep(in, out, shots);
+                        }
+                    } catch (IOException e) {
+                        // the phone dropped the connection
+                        mDropped = true;
+                    }
+                    socket.close();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        lightstageThread.start();
+
+        mController = new LightstageController(new String[]{"127.0.0.1"},
+                lightstage.getLocalPort(), closedPort(), new LightstageController.Listener() {
+            @Override
+            public int onSessionStarted() {
+                mShotCounter = 0;
+                mTimings.reset();
+                return -1;
+            }
+
+            @Override
+            public void onShoot(int sequence) throws Exception {
+                final ZslRingBuffer<FakeCameraHal.FakeImage> zslBuffer = mZslBuffer;
+                LightstageShot shot = new LightstageShot(mDir, "bench", mShotCounter++,
+                        zslBuffer != null ? 1 : Math.max(1, mExposureLadder.length));
+                shot.sequence = sequence;
+                if (!mImageQueue.awaitCapacity(shot.frames.length, 0)) {
+                    throw new IOException("image queue full");
+                }
+                if (zslBuffer != null) {
+                    // what Camera2BasicFragment.captureZslPicture does
+                    final LightstageShot.Frame frame = shot.frames[0];
+                    zslBuffer.trigger(System.nanoTime(),
+                            new ZslRingBuffer.Callback<FakeCameraHal.FakeImage>() {
+                                @Override
+                                public void onFramePicked(FakeCameraHal.FakeImage image) {
+                                    save(image, mImageQueue.onImageAcquired(image), frame);
+                                }
+                            });
+                    return;
+                }
+                mPendingFrames.addAll(Arrays.asList(shot.frames));
+                mCapturingFrames.addAll(Arrays.asList(shot.frames));
+                mEngine.waitForExposure();
+            }
+
+            @Override
+            public int shotCredits() {
+                int brackets = mZslBuffer != null ? 1 : Math.max(1, mExposureLadder.length);
+                return Math.min(mImageQueue.shotsThatFit(brackets), mSaver.freeSlots());
+            }
+
+            @Override
+            public void onExposureLadder(float[] exposures) throws IOException {
+                if (exposures.length > mImageQueue.capacity()) {
+                    throw new IOException("exposure ladder doesn't fit into the image queue");
+                }
+                mExposureLadder = exposures;
+            }
+
+            @Override
+            public int onFrameCount(int shots) {
+                return shots;
+            }
+
+            @Override
+            public void onSessionEnded() {
+                mEngine.reset();
+            }
+
+            @Override
+            public void onStatus(String message) {
+            }
+        });
+        mController.run();
+        lightstageThread.join(10000);
+        lightstage.close();
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+        assertEquals(0, mHal.readerOverflows());
+        return acks[0];
+    }
+
+    /**
+     * Sends {@code shots} shots one at a time, each once the previous one is answered.
+     *
+     * @return The number of {@link LightstageController#FRAME_SAVED} acks
+     */
+    private int shootLockstep(DataInputStream in, DataOutputStream out, int shots)
+            throws IOException {
+        int acks = 0;
+        for (int i = 0; i < shots; i++) {
+            out.writeByte(LightstageController.SHOOT);
+            out.flush();
+            byte reply = in.readByte();
+            if (reply == LightstageController.FRAME_SAVED) {
+                acks++;
+            } else if (reply == LightstageController.ERROR) {
+                mErrors++;
+            }
+        }
+        out.writeByte(LightstageController.END);
+        out.flush();
+        return acks;
+    }
+
+    /**
+     * Switches to protocol v2 and sends {@code shots} shots as fast as the credits allow.
+     *
+     * @return The number of {@link LightstageController#FRAME_SAVED} acks
+     */
+    private int shootPipelined(DataInputStream in, DataOutputStream out, int shots)
+            throws IOException {
+        out.writeByte(LightstageController.PROTOCOL_V2);
+        out.flush();
+        assertEquals(LightstageController.PROTOCOL_V2, in.readByte());
+        int granted = 0;
+        int sent = 0;
+        int acks = 0;
+        while (acks + mErrors < shots) {
+            for (; sent < Math.min(granted, shots); sent++) {
+                writeFrame(out, LightstageController.SHOOT, sent);
+            }
+            out.flush();
+            byte message = in.readByte();
+            in.readInt();
+            ByteBuffer payload = ByteBuffer.allocate(in.readUnsignedShort());
+            in.readFully(payload.array());
+            if (message == LightstageController.CREDIT) {
+                granted = payload.getInt();
+            } else if (message == LightstageController.FRAME_SAVED) {
+                acks++;
+            } else if (message == LightstageController.ERROR) {
+                mErrors++;
+            }
+        }
+        writeFrame(out, LightstageController.END, 0);
+        out.flush();
+        return acks;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte message, int sequence)
+            throws IOException {
+        out.writeByte(message);
+        out.writeInt(sequence);
+        out.writeShort(0);
+    }
+
+    /**
+     * Returns a loopback port nothing listens on, so the PMD is treated as absent.
+     */
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams frames to a receiver on the loopback interface.
+ */
+public class FrameStreamerTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private ServerSocket mServer;
+    private final Map<String, byte[]> mReceived = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.getRoot();
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void streamsFilesAndPackedFrames() throws Exception {
+        Thread receiver = startReceiver();
+        File jpeg = write("0000.jpg", FrameStreamer.CHUNK_BYTES * 2 + 17, 1);
+        File dng = write("0000.dng", 1000, 2);
+        File pack = new File(mDir, "session.pack");
+        SessionPack.Writer writer = new SessionPack.Writer(pack);
+        writer.append("0001.jpg", 1, 0, ByteBuffer.wrap(TestBuffers.counting(300, 3)));
+        writer.append("0002.jpg", 2, 0, ByteBuffer.wrap(TestBuffers.counting(400, 4)));
+
+        FrameStreamer streamer = new FrameStreamer("127.0.0.1", mServer.getLocalPort(), 0,
+                CaptureTimings.SYSTEM_CLOCK);
+        streamer.offer(jpeg);
+        streamer.offer(dng);
+        streamer.offer(pack, writer.entriesOf(2).get(0));
+        streamer.finish();
+        assertTrue(streamer.awaitFinished(5000));
+        receiver.join(5000);
+        writer.close();
+
+        assertEquals(3, streamer.framesSent());
+        assertEquals(3, mReceived.size());
+        assertArrayEquals(TestBuffers.counting(FrameStreamer.CHUNK_BYTES * 2 + 17, 1),
+                mReceived.get("0000.jpg"));
+        assertArrayEquals(TestBuffers.counting(1000, 2), mReceived.get("0000.dng"));
+        assertArrayEquals(TestBuffers.counting(400, 4), mReceived.get("0002.jpg"));
+    }
+
+    @Test
+    public void rateLimiterPacesTheStream() {
+        final long[] now = {0};
+        FrameStreamer.RateLimiter limiter = new FrameStreamer.RateLimiter(1000,
+                new CaptureTimings.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                });
+        assertEquals(0, limiter.reserve(500));
+        // the next chunk waits until the first one is through
+        assertEquals(500000000L, limiter.reserve(500));
+        assertEquals(1000000000L, limiter.reserve(500));
+
+        // an idle stream doesn't send a burst afterwards
+        now[0] = 10000000000L;
+        assertEquals(0, limiter.reserve(500));
+        assertEquals(500000000L, limiter.reserve(500));
+    }
+
+    private Thread startReceiver() {
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = mServer.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    try {
+                        while (true) {
+                            String name = in.readUTF();
+                            byte[] frame = new byte[(int) in.readLong()];
+                            in.readFully(frame);
+                            mReceived.put(name, frame);
+                        }
+                    } catch (EOFException e) {
+                        // the phone closed the transfer socket
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        receiver.start();
+        return receiver;
+    }
+
+    private File write(String name, int length, int value) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(TestBuffers.counting(length, value));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests for {@link GroupCommitter} and the acknowledgement of durable shots.
+ */
+public class GroupCommitterTest {
+
+    private int mSyncs;
+    private int mReleases;
+    private int mDurable;
+    private int mShotsSaved;
+
+    private final GroupCommitter.Target mTarget = new GroupCommitter.Target() {
+        @Override
+        public void sync() {
+            mSyncs++;
+        }
+
+        @Override
+        public void release() {
+            mReleases++;
+        }
+    };
+
+    private final GroupCommitter.Listener mListener = new GroupCommitter.Listener() {
+        @Override
+        public void onDurable(IOException failure) {
+            assertNull(failure);
+            mDurable++;
+        }
+    };
+
+    @Test
+    public void groupIsSyncedOnceWhenFull() {
+        GroupCommitter committer = new GroupCommitter(GroupCommitter.Mode.GROUP, 3, 0);
+        committer.commit(mTarget, mListener);
+        committer.commit(mTarget, mListener);
+        assertEquals(0, mDurable);
+        committer.commit(mTarget, mListener);
+        assertEquals(3, mDurable);
+        // the frames share the target, so the group costs one sync
+        assertEquals(1, mSyncs);
+        assertEquals(3, mReleases);
+        assertEquals(1, committer.groups());
+    }
+
+    @Test
+    public void groupIsSyncedAfterTheInterval() throws InterruptedException {
+        final CountDownLatch durable = new CountDownLatch(1);
+        GroupCommitter committer = new GroupCommitter(GroupCommitter.Mode.GROUP, 100, 20);
+        committer.commit(mTarget, new GroupCommitter.Listener() {
+            @Override
+            public void onDurable(IOException failure) {
+                durable.countDown();
+            }
+        });
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mSyncs);
+        committer.close();
+    }
+
+    @Test
+    public void noneAndPerFrameModes() {
+        GroupCommitter.NO_SYNC.commit(mTarget, mListener);
+        assertEquals(0, mSyncs);
+        new GroupCommitter(GroupCommitter.Mode.PER_FRAME, 8, 0).commit(mTarget, mListener);
+        assertEquals(1, mSyncs);
+        assertEquals(2, mDurable);
+        assertEquals(2, mReleases);
+    }
+
+    @Test
+    public void shotIsAcknowledgedOnceItsGroupIsDurable() {
+        GroupCommitter committer = new GroupCommitter(GroupCommitter.Mode.GROUP, 100, 0);
+        LightstageShot shot = new LightstageShot(new File("unused"), "group", 0, 3, 1, ".jpg",
+                null, committer);
+        ImageSaver.Callback callback = new ImageSaver.Callback() {
+            @Override
+            public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+            }
+
+            @Override
+            public void onShotSaved(LightstageShot shot) {
+                mShotsSaved++;
+            }
+        };
+        shot.onFrameWritten(shot.frames[0], mTarget, 100, null, callback);
+        shot.onFrameWritten(shot.frames[1], mTarget, 100, null, callback);
+        assertEquals(0, mSyncs);
+        assertEquals(0, mShotsSaved);
+        // the last frame of the shot flushes the group, since the lightstage waits for it
+        shot.onFrameWritten(shot.frames[2], mTarget, 100, null, callback);
+        assertEquals(1, mSyncs);
+        assertEquals(1, mShotsSaved);
+    }
+
+    @Test
+    public void pipelinedShotsShareAGroup() {
+        GroupCommitter committer = new GroupCommitter(GroupCommitter.Mode.GROUP, 4, 60000);
+        ImageSaver.Callback callback = new ImageSaver.Callback() {
+            @Override
+            public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+            }
+
+            @Override
+            public void onShotSaved(LightstageShot shot) {
+                mShotsSaved++;
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            LightstageShot shot = new LightstageShot(new File("unused"), "group", i, 2, 1,
+                    ".jpg", null, committer);
+            shot.sequence = i;
+            shot.onFrameWritten(shot.frames[0], mTarget, 100, null, callback);
+            shot.onFrameWritten(shot.frames[1], mTarget, 100, null, callback);
+        }
+        // one sync for both shots, once the group is full
+        assertEquals(1, mSyncs);
+        assertEquals(2, mShotsSaved);
+        committer.close();
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests for {@link ImageQueue}.
+ */
+public class ImageQueueTest {
+
+    private int mClosed;
+
+    private final AutoCloseable mImage = new AutoCloseable() {
+        @Override
+        public void close() {
+            mClosed++;
+        }
+    };
+
+    @Test
+    public void fullQueueTimesOutUntilAnImageIsClosed() throws Exception {
+        ImageQueue queue = new ImageQueue(2);
+        assertTrue(queue.awaitCapacity(2, 0));
+        AutoCloseable first = queue.onImageAcquired(mImage);
+        queue.onImageAcquired(mImage);
+        assertEquals(2, queue.acquired());
+
+        assertFalse(queue.awaitCapacity(1, 10));
+        first.close();
+        first.close();
+        assertEquals(1, mClosed);
+        assertTrue(queue.awaitCapacity(1, 0));
+        assertEquals(1, queue.waits());
+        assertEquals(2, queue.maxAcquired());
+    }
+
+    @Test
+    public void waiterWakesUpWhenAnImageIsClosed() throws Exception {
+        ImageQueue queue = new ImageQueue(1);
+        assertTrue(queue.awaitCapacity(1, 0));
+        final AutoCloseable handle = queue.onImageAcquired(mImage);
+        Thread saver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                    handle.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        saver.start();
+        assertTrue(queue.awaitCapacity(1, 5000));
+        saver.join();
+    }
+
+    @Test
+    public void shotsThatFitCountWholeShots() throws Exception {
+        ImageQueue queue = new ImageQueue(4);
+        assertEquals(2, queue.shotsThatFit(2));
+        assertTrue(queue.awaitCapacity(1, 0));
+        assertEquals(1, queue.shotsThatFit(2));
+        queue.cancel(1);
+        // a ladder longer than the queue never fits, not even into an empty one
+        assertEquals(0, queue.shotsThatFit(6));
+        assertFalse(queue.awaitCapacity(6, 0));
+        assertEquals(4, queue.available());
+    }
+
+    @Test
+    public void cancelledReservationsFreeTheQueue() throws Exception {
+        ImageQueue queue = new ImageQueue(3);
+        assertTrue(queue.awaitCapacity(3, 0));
+        assertFalse(queue.awaitCapacity(1, 0));
+        queue.cancel(3);
+        assertTrue(queue.awaitCapacity(3, 0));
+    }
+
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link LightstageController} against a lightstage and a PMD on the loopback
+ * interface.
+ */
+public class LightstageControllerTest {
+
+    private ServerSocket mLightstage;
+    private ServerSocket mPmd;
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Byte> mLightstageReceived =
+            Collections.synchronizedList(new ArrayList<Byte>());
+    private final List<Byte> mPmdReceived = Collections.synchronizedList(new ArrayList<Byte>());
+    private final List<Integer> mUnsaved = Collections.synchronizedList(new ArrayList<Integer>());
+    private LightstageController mController;
+    private volatile long mSessionStartedNs;
+    private volatile boolean mSaversBehind;
+
+    @Before
+    public void setUp() throws IOException {
+        mLightstage = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mPmd = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLightstage.close();
+        mPmd.close();
+    }
+
+    @Test
+    public void pmdThatNeverAnswersIsDroppedAfterTheTimeout() throws Exception {
+        Thread pmd = serve(mPmd, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                // reads INIT, then stays silent until the phone gives up on it
+                mPmdReceived.add(in.readByte());
+                assertEquals(-1, in.read());
+            }
+        });
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mLightstageReceived.add(in.readByte());
+                // the handshake answer and the first commands in one packet
+                out.write(new byte[]{LightstageController.INIT,
+                        LightstageController.EXPOSURE_LADDER, 2, 0, 0, 0x30, 0x39});
+                out.flush();
+                Thread.sleep(50);
+                // the rest of the ladder, a frame count split in two and a shot
+                out.write(new byte[]{0, 0, 0x30, 0x3a, LightstageController.FRAME_COUNT, 0});
+                out.flush();
+                Thread.sleep(50);
+                out.write(new byte[]{0, 0, 10, LightstageController.SHOOT});
+                out.flush();
+                mLightstageReceived.add(in.readByte());
+                assertEquals(5, in.readInt());
+                mLightstageReceived.add(in.readByte());
+                out.writeByte(LightstageController.END);
+                out.flush();
+            }
+        });
+
+        long start = System.nanoTime();
+        run(300);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        lightstage.join(2000);
+        pmd.join(2000);
+
+        assertEquals("[started, ladder 2, count 10, shoot, ended]", mEvents.toString());
+        assertEquals("[1, 7, 3]", mLightstageReceived.toString());
+        assertEquals("[1]", mPmdReceived.toString());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void slowPmdDoesNotHoldUpTheLightstage() throws Exception {
+        Thread pmd = serve(mPmd, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mPmdReceived.add(in.readByte());
+                out.writeByte(LightstageController.INIT);
+                out.flush();
+                mPmdReceived.add(in.readByte());
+                mPmdReceived.add(in.readByte());
+                out.writeByte(LightstageController.SHOOT);
+                out.flush();
+                // takes a while to write its recording
+                Thread.sleep(200);
+                out.writeByte(LightstageController.END);
+                out.flush();
+            }
+        });
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mLightstageReceived.add(in.readByte());
+                out.writeByte(LightstageController.INIT);
+                for (int i = 0; i < 3; i++) {
+                    out.writeByte(LightstageController.SHOOT);
+                    out.flush();
+                    mLightstageReceived.add(in.readByte());
+                }
+                out.writeByte(LightstageController.END);
+                out.flush();
+            }
+        });
+
+        run(1000);
+        lightstage.join(2000);
+        pmd.join(2000);
+
+        assertEquals("[started, shoot, shoot, shoot, ended, pmd writing now, "
+                + "pmd shutdown successful]", mEvents.toString());
+        assertEquals("[1, 3, 3, 3]", mLightstageReceived.toString());
+        // INIT, one SHOOT to start the recording and END
+        assertEquals("[1, 2, -1]", mPmdReceived.toString());
+    }
+
+    @Test
+    public void handshakesRunAtTheSameTime() throws Exception {
+        Thread pmd = serve(mPmd, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mPmdReceived.add(in.readByte());
+                Thread.sleep(400);
+                out.writeByte(LightstageController.INIT);
+                out.flush();
+                mPmdReceived.add(in.readByte());
+                out.writeByte(LightstageController.END);
+                out.flush();
+            }
+        });
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mLightstageReceived.add(in.readByte());
+                Thread.sleep(400);
+                out.writeByte(LightstageController.INIT);
+                out.writeByte(LightstageController.END);
+                out.flush();
+                // until the phone hangs up
+                assertEquals(-1, in.read());
+            }
+        });
+
+        long start = System.nanoTime();
+        run(1000);
+        lightstage.join(2000);
+        pmd.join(2000);
+
+        assertEquals("[started, ended, pmd shutdown successful]", mEvents.toString());
+        assertEquals("[1]", mLightstageReceived.toString());
+        assertEquals("[1, -1]", mPmdReceived.toString());
+        long setupMs = (mSessionStartedNs - start) / 1000000;
+        assertTrue("took " + setupMs + "ms", setupMs >= 400 && setupMs < 750);
+    }
+
+    @Test
+    public void firstCandidateToConnectWins() throws Exception {
+        mPmd.close();
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mLightstageReceived.add(in.readByte());
+                out.writeByte(LightstageController.INIT);
+                out.writeByte(LightstageController.END);
+                out.flush();
+                assertEquals(-1, in.read());
+            }
+        });
+
+        long start = System.nanoTime();
+        // a host that doesn't resolve and an address that refuses the connect come first
+        run(new String[]{"no-such-lightstage.invalid", "127.0.0.2", "127.0.0.1"}, 5000);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        lightstage.join(2000);
+
+        assertEquals("[started, ended]", mEvents.toString());
+        assertEquals("127.0.0.1", mController.getHost());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 1000);
+    }
+
+    @Test
+    public void persistentConnectionServesSessionsAndReconnects() throws Exception {
+        mPmd.close();
+        final List<Byte> keepAlives = Collections.synchronizedList(new ArrayList<Byte>());
+        Thread lightstage = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = mLightstage.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    mLightstageReceived.add(in.readByte());
+                    out.write(new byte[]{LightstageController.INIT, LightstageController.SHOOT});
+                    out.flush();
+                    mLightstageReceived.add(in.readByte());
+                    out.writeByte(LightstageController.END);
+                    out.flush();
+                    // the next subject, on the same connection
+                    Thread.sleep(50);
+                    out.write(new byte[]{LightstageController.INIT});
+                    out.flush();
+                    mLightstageReceived.add(in.readByte());
+                    out.writeByte(LightstageController.SHOOT);
+                    out.flush();
+                    mLightstageReceived.add(in.readByte());
+                    out.writeByte(LightstageController.END);
+                    out.flush();
+                    // the lightstage restarts
+                    socket.close();
+
+                    socket = mLightstage.accept();
+                    in = new DataInputStream(socket.getInputStream());
+                    out = new DataOutputStream(socket.getOutputStream());
+                    mLightstageReceived.add(in.readByte());
+                    out.write(new byte[]{LightstageController.INIT,
+                            LightstageController.PROTOCOL_V2});
+                    out.flush();
+                    mLightstageReceived.add(in.readByte());
+                    assertEquals(2, readCredit(in));
+                    // nothing else to say, so the phone keeps the connection alive
+                    keepAlives.add(readFrame(in));
+                    writeFrame(out, LightstageController.END, 0, new byte[0]);
+                    writeFrame(out, LightstageController.INIT, 0, new byte[0]);
+                    out.flush();
+                    // the answer to INIT, maybe after more keep-alives
+                    while (readFrame(in) != LightstageController.INIT) {
+                        keepAlives.add(LightstageController.KEEP_ALIVE);
+                    }
+                    mController.stop();
+                    // the credit of the new session may still come
+                    while (in.read() >= 0) {
+                        // until the phone hangs up
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        lightstage.start();
+
+        run(new String[]{"127.0.0.1"}, 1000, 100, true);
+        lightstage.join(2000);
+
+        assertEquals("[started, shoot, ended, started, shoot, ended, started, ended, started]",
+                mEvents.toString());
+        // INIT, FRAME_SAVED, the answer to the next INIT and FRAME_SAVED; after the reconnect
+        // INIT and the v2 answer
+        assertEquals("[1, 3, 1, 3, 1, 9]", mLightstageReceived.toString());
+        assertEquals(LightstageController.KEEP_ALIVE, (byte) keepAlives.get(0));
+    }
+
+    @Test
+    public void lockstepShotWaitsForRoom() throws Exception {
+        mPmd.close();
+        mSaversBehind = true;
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                in.readByte();
+                out.writeByte(LightstageController.INIT);
+                out.writeByte(LightstageController.SHOOT);
+                out.flush();
+                Thread.sleep(100);
+                mEvents.add("room");
+                mSaversBehind = false;
+                mController.updateCredits();
+                mLightstageReceived.add(in.readByte());
+                out.writeByte(LightstageController.END);
+                out.flush();
+                assertEquals(-1, in.read());
+            }
+        });
+
+        run(1000);
+        lightstage.join(2000);
+
+        assertEquals("[started, room, shoot, ended]", mEvents.toString());
+        assertEquals("[3]", mLightstageReceived.toString());
+    }
+
+    @Test
+    public void lockstepShotFailsIfItNeverFits() throws Exception {
+        mPmd.close();
+        mSaversBehind = true;
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                in.readByte();
+                out.writeByte(LightstageController.INIT);
+                out.writeByte(LightstageController.SHOOT);
+                out.flush();
+                mLightstageReceived.add(in.readByte());
+                out.writeByte(LightstageController.END);
+                out.flush();
+                assertEquals(-1, in.read());
+            }
+        });
+
+        run(200);
+        lightstage.join(2000);
+
+        assertEquals("[started, ended]", mEvents.toString());
+        assertEquals("[" + LightstageController.ERROR + "]", mLightstageReceived.toString());
+    }
+
+    @Test
+    public void protocolV2PipelinesShotsWithinTheCredit() throws Exception {
+        // no PMD
+        mPmd.close();
+        final List<String> acks = Collections.synchronizedList(new ArrayList<String>());
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                mLightstageReceived.add(in.readByte());
+                out.write(new byte[]{LightstageController.INIT, LightstageController.PROTOCOL_V2});
+                out.flush();
+                mLightstageReceived.add(in.readByte());
+                assertEquals(2, readCredit(in));
+                ByteBuffer ladder = ByteBuffer.allocate(9);
+                ladder.put((byte) 2).putInt(12345).putInt(12346);
+                writeFrame(out, LightstageController.EXPOSURE_LADDER, 0, ladder.array());
+                // both shots without waiting for the first to be saved
+                writeFrame(out, LightstageController.SHOOT, 100, new byte[0]);
+                writeFrame(out, LightstageController.SHOOT, 101, new byte[0]);
+                out.flush();
+                int credit = 0;
+                while (acks.size() < 2 || credit < 4) {
+                    byte message = in.readByte();
+                    int sequence = in.readInt();
+                    byte[] payload = new byte[in.readUnsignedShort()];
+                    in.readFully(payload);
+                    if (message == LightstageController.CREDIT) {
+                        credit = ByteBuffer.wrap(payload).getInt();
+                    } else {
+                        acks.add(message + ":" + sequence + ":" + payload.length);
+                    }
+                }
+                writeFrame(out, LightstageController.END, 0, new byte[0]);
+                out.flush();
+            }
+        });
+
+        run(1000);
+        lightstage.join(2000);
+
+        assertEquals("[started, ladder 2, shoot 100, shoot 101, ended]", mEvents.toString());
+        assertEquals("[1, 9]", mLightstageReceived.toString());
+        // in the order they were saved, each with an empty checksum block
+        assertEquals("[3:101:1, 3:100:1]", acks.toString());
+    }
+
+    @Test
+    public void shortPayloadDropsTheConnection() throws Exception {
+        // a ladder of two exposures with only one of them
+        ByteBuffer ladder = ByteBuffer.allocate(5);
+        ladder.put((byte) 2).putInt(12345);
+        assertFrameDropsTheConnection(LightstageController.EXPOSURE_LADDER, ladder.array());
+        assertEquals("[started]", mEvents.toString());
+    }
+
+    @Test
+    public void frameLargerThanTheBufferDropsTheConnection() throws Exception {
+        assertFrameDropsTheConnection(LightstageController.CHECKSUMS, new byte[8192]);
+        assertEquals("[started]", mEvents.toString());
+    }
+
+    /**
+     * Has a v2 lightstage send {@code message} and checks the controller closes the connection
+     * rather than waiting for more or failing on the payload.
+     */
+    private void assertFrameDropsTheConnection(final byte message, final byte[] payload)
+            throws Exception {
+        mPmd.close();
+        final boolean[] closed = new boolean[1];
+        Thread lightstage = serve(mLightstage, new Peer() {
+            @Override
+            public void run(DataInputStream in, DataOutputStream out) throws Exception {
+                in.readByte();
+                out.write(new byte[]{LightstageController.INIT, LightstageController.PROTOCOL_V2});
+                out.flush();
+                in.readByte();
+                readCredit(in);
+                writeFrame(out, message, 0, payload);
+                out.flush();
+                try {
+                    while (in.read() >= 0) {
+                        // credits and keep-alives until the controller gives up
+                    }
+                    closed[0] = true;
+                } finally {
+                    mController.stop();
+                }
+            }
+        });
+
+        run(1000);
+        lightstage.join(2000);
+
+        assertTrue(closed[0]);
+    }
+
+    private static int readCredit(DataInputStream in) throws IOException {
+        assertEquals(LightstageController.CREDIT, in.readByte());
+        in.readInt();
+        assertEquals(4, in.readUnsignedShort());
+        return in.readInt();
+    }
+
+    /**
+     * Reads a v2 frame and returns its message byte.
+     */
+    private static byte readFrame(DataInputStream in) throws IOException {
+        byte message = in.readByte();
+        in.readInt();
+        in.readFully(new byte[in.readUnsignedShort()]);
+        return message;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte message, int sequence,
+                                   byte[] payload) throws IOException {
+        out.writeByte(message);
+        out.writeInt(sequence);
+        out.writeShort(payload.length);
+        out.write(payload);
+    }
+
+    private interface Peer {
+        void run(DataInputStream in, DataOutputStream out) throws Exception;
+    }
+
+    private static Thread serve(final ServerSocket server, final Peer peer) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        peer.run(new DataInputStream(socket.getInputStream()),
+                                new DataOutputStream(socket.getOutputStream()));
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void run(int ioTimeoutMs) {
+        run(new String[]{"127.0.0.1"}, ioTimeoutMs);
+    }
+
+    private void run(String[] hosts, int ioTimeoutMs) {
+        run(hosts, ioTimeoutMs, 0, false);
+    }
+
+    private void run(String[] hosts, int ioTimeoutMs, int keepAliveMs, boolean persistent) {
+        mController = new LightstageController(hosts, mLightstage.getLocalPort(),
+                mPmd.getLocalPort(), 1000, ioTimeoutMs, keepAliveMs, persistent,
+                new LightstageController.Listener() {
+                    @Override
+                    public int onSessionStarted() {
+                        mEvents.add("started");
+                        mSessionStartedNs = System.nanoTime();
+                        return -1;
+                    }
+
+                    @Override
+                    public void onShoot(int sequence) {
+                        if (sequence < 0) {
+                            mEvents.add("shoot");
+                            mController.frameSaved();
+                            return;
+                        }
+                        mEvents.add("shoot " + sequence);
+                        mUnsaved.add(sequence);
+                        if (mUnsaved.size() == 2) {
+                            // the second shot is saved before the first
+                            final int first = mUnsaved.get(0);
+                            final int second = mUnsaved.get(1);
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mUnsaved.remove(Integer.valueOf(second));
+                                    mController.frameSaved(second,
+                                            Collections.<SessionManifest.Entry>emptyList());
+                                    mUnsaved.remove(Integer.valueOf(first));
+                                    mController.frameSaved(first,
+                                            Collections.<SessionManifest.Entry>emptyList());
+                                }
+                            }).start();
+                        }
+                    }
+
+                    @Override
+                    public int shotCredits() {
+                        return mSaversBehind ? 0 : 2 - mUnsaved.size();
+                    }
+
+                    @Override
+                    public void onExposureLadder(float[] exposures) {
+                        mEvents.add("ladder " + exposures.length);
+                        assertEquals(0.012345f, exposures[0], 1e-7f);
+                        assertEquals(0.012346f, exposures[1], 1e-7f);
+                    }
+
+                    @Override
+                    public int onFrameCount(int shots) {
+                        mEvents.add("count " + shots);
+                        return shots / 2;
+                    }
+
+                    @Override
+                    public void onSessionEnded() {
+                        mEvents.add("ended");
+                    }
+
+                    @Override
+                    public void onStatus(String message) {
+                        if (message.startsWith("pmd")) {
+                            mEvents.add(message);
+                        }
+                    }
+                });
+        mController.run();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Writes {@link SessionJournal}s and recovers sessions from them.
+ */
+public class SessionJournalTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+    }
+
+    @Test
+    public void recoversTheLastSavedShotOfACrashedSession() throws IOException {
+        SessionJournal journal = SessionJournal.create(mDir, "20180101_120000");
+        journal.command(0, LightstageController.INIT);
+        for (int i = 0; i < 3; i++) {
+            LightstageShot shot = new LightstageShot(mDir, "20180101_120000", i, 2);
+            journal.command(i, LightstageController.SHOOT);
+            journal.captured(shot.frames[0]);
+            journal.captured(shot.frames[1]);
+            if (i < 2) {
+                journal.shotSaved(shot, true);
+            }
+        }
+        journal.close();
+        // a record torn by the crash
+        RandomAccessFile raf = new RandomAccessFile(journal.getFile(), "rw");
+        raf.setLength(raf.length() + 5);
+        raf.close();
+
+        SessionJournal.Recovery recovery = SessionJournal.recover(mDir);
+        assertEquals("20180101_120000", recovery.session);
+        assertEquals(1, recovery.lastSavedShot);
+
+        // the resumed session appends to the same journal and can end cleanly
+        SessionJournal resumed = SessionJournal.resume(recovery);
+        assertEquals(0, (journal.getFile().length() - 10 - "20180101_120000".length())
+                % SessionJournal.RECORD_BYTES);
+        resumed.shotSaved(new LightstageShot(mDir, recovery.session, 2, 2), false);
+        assertEquals(2, SessionJournal.read(journal.getFile()).lastSavedShot);
+        resumed.ended(3);
+        assertNull(SessionJournal.recover(mDir));
+    }
+
+    @Test
+    public void resumesAfterTheLastShotWithoutAGapBeforeIt() throws IOException {
+        SessionJournal journal = SessionJournal.create(mDir, "20180101_120000");
+        LightstageShot[] shots = new LightstageShot[5];
+        for (int i = 0; i < shots.length; i++) {
+            shots[i] = new LightstageShot(mDir, "20180101_120000", i, 1);
+        }
+        // pipelined shots are saved out of order
+        journal.shotSaved(shots[0], false);
+        journal.shotSaved(shots[2], false);
+        assertEquals(0, SessionJournal.read(journal.getFile()).lastSavedShot);
+        journal.shotSaved(shots[1], false);
+        assertEquals(2, SessionJournal.read(journal.getFile()).lastSavedShot);
+        // a failed shot is taken again, and so is every shot after it
+        shots[3].onCaptureFailed(shots[3].frames[0], new IOException("capture failed"),
+                new ImageSaver.Callback() {
+                    @Override
+                    public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+                    }
+
+                    @Override
+                    public void onShotSaved(LightstageShot shot) {
+                    }
+                });
+        journal.shotSaved(shots[3], false);
+        journal.shotSaved(shots[4], false);
+        journal.close();
+
+        SessionJournal.Recovery recovery = SessionJournal.recover(mDir);
+        assertEquals(2, recovery.lastSavedShot);
+        SessionJournal resumed = SessionJournal.resume(recovery);
+        resumed.shotSaved(new LightstageShot(mDir, recovery.session, 3, 1), false);
+        resumed.close();
+        assertEquals(4, SessionJournal.read(journal.getFile()).lastSavedShot);
+    }
+
+    @Test
+    public void onlyTheLatestSessionIsRecovered() throws IOException {
+        SessionJournal crashed = SessionJournal.create(mDir, "20180101_120000");
+        crashed.shotSaved(new LightstageShot(mDir, "20180101_120000", 0, 1), false);
+        crashed.close();
+        SessionJournal.create(mDir, "20180102_120000").ended(0);
+
+        assertNull(SessionJournal.recover(mDir));
+    }
+
+}
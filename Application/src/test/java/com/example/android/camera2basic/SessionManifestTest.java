@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the checksums the savers compute while writing and the {@link SessionManifest} they go
+ * into.
+ */
+public class SessionManifestTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+    }
+
+    @Test
+    public void imageSaverChecksumMatchesTheFile() throws Exception {
+        LightstageShot shot = new LightstageShot(mDir, "session", 0, 2, 1, ".jpg", null,
+                GroupCommitter.NO_SYNC, "crc32");
+        for (LightstageShot.Frame frame : shot.frames) {
+            save(frame, 200000 + frame.bracket);
+        }
+
+        List<SessionManifest.Entry> checksums = shot.checksums();
+        assertEquals(2, checksums.size());
+        for (int i = 0; i < 2; i++) {
+            byte[] file = read(shot.frames[i].file);
+            CRC32 crc = new CRC32();
+            crc.update(file);
+            assertEquals(shot.frames[i].file.getName(), checksums.get(i).name);
+            assertEquals(file.length, checksums.get(i).length);
+            assertEquals((int) crc.getValue(),
+                    ByteBuffer.wrap(checksums.get(i).checksum).getInt());
+        }
+
+        SessionManifest manifest = new SessionManifest(mDir, "session");
+        manifest.add(checksums);
+        manifest.close();
+        // a resumed session appends
+        manifest = new SessionManifest(mDir, "session");
+        manifest.add(checksums.subList(0, 1));
+        manifest.close();
+
+        List<SessionManifest.Entry> read = SessionManifest.read(manifest.getFile());
+        assertEquals(3, read.size());
+        assertEquals("crc32", read.get(1).algorithm);
+        assertArrayEquals(checksums.get(1).checksum, read.get(1).checksum);
+    }
+
+    @Test
+    public void digestOfDirectBuffersMatchesHeapBytes() throws Exception {
+        byte[] bytes = TestBuffers.counting(100000, 0);
+        FrameChecksum checksum = FrameChecksum.create("SHA-256");
+        ByteBuffer first = ByteBuffer.allocateDirect(60000);
+        first.put(bytes, 0, 60000).flip();
+        checksum.update(first, ByteBuffer.wrap(bytes, 60000, 40000));
+        assertEquals(60000, first.remaining());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(bytes), checksum.value());
+    }
+
+    private void save(LightstageShot.Frame frame, int length) {
+        new ImageSaver(new AutoCloseable() {
+            @Override
+            public void close() {
+            }
+        }, TestBuffers.filled(length, 31), frame, new CaptureTimings(CaptureTimings.SYSTEM_CLOCK),
+                new ImageSaver.Callback() {
+                    @Override
+                    public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+                        fail(e.toString());
+                    }
+
+                    @Override
+                    public void onShotSaved(LightstageShot shot) {
+                    }
+                }).run();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+}
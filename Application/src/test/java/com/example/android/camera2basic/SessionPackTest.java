@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes and reads back {@link SessionPack}s.
+ */
+public class SessionPackTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private File mPack;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+        mPack = new File(mDir, "session.pack");
+    }
+
+    @Test
+    public void readsFramesByIndex() throws IOException {
+        SessionPack.Writer writer = new SessionPack.Writer(mPack);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, writer.append("frame" + i, i, 0, TestBuffers.filled(1000 + i, i)));
+        }
+        // a gather write of several buffers becomes one frame
+        writer.append("yuv", 3, 1, TestBuffers.filled(10, 7), TestBuffers.filled(5, 8));
+        writer.close();
+
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals(4, reader.frameCount());
+            SessionPack.Entry entry = reader.entry(2);
+            assertEquals("frame2", entry.name);
+            assertEquals(2, entry.shot);
+            assertEquals(SessionPack.HEADER_BYTES + SessionPack.recordBytes("frame0") + 1000
+                    + SessionPack.recordBytes("frame1") + 1001
+                    + SessionPack.recordBytes("frame2"), entry.offset);
+            ByteBuffer frame = reader.readFrame(2);
+            assertEquals(1002, frame.remaining());
+            while (frame.hasRemaining()) {
+                assertEquals(2, frame.get());
+            }
+
+            int yuv = reader.indexOf("yuv");
+            assertEquals(3, yuv);
+            assertEquals(1, reader.entry(yuv).bracket);
+            ByteBuffer planes = reader.readFrame(yuv);
+            assertEquals(15, planes.remaining());
+            assertEquals(7, planes.get(9));
+            assertEquals(8, planes.get(10));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void imageSaverAppendsToThePack() throws IOException {
+        SessionPack.Writer writer = new SessionPack.Writer(mPack);
+        LightstageShot shot = new LightstageShot(mDir, "session", 5, 1, 1, ".jpg", writer,
+                GroupCommitter.NO_SYNC);
+        new ImageSaver(new AutoCloseable() {
+            @Override
+            public void close() {
+            }
+        }, TestBuffers.filled(64, 3), shot.frames[0],
+                new CaptureTimings(CaptureTimings.SYSTEM_CLOCK),
+                new ImageSaver.Callback() {
+                    @Override
+                    public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+                        fail(e.toString());
+                    }
+
+                    @Override
+                    public void onShotSaved(LightstageShot shot) {
+                    }
+                }).run();
+        writer.close();
+
+        assertTrue(!shot.frames[0].file.exists());
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals(0, reader.indexOf(shot.frames[0].file.getName()));
+            assertEquals(5, reader.entry(0).shot);
+            assertEquals(64, reader.readFrame(0).remaining());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void mappedWriterTruncatesThePreallocation() throws IOException {
+        SessionPack.Writer writer = new SessionPack.MappedWriter(mPack, 1024 * 1024);
+        assertEquals(1024 * 1024, mPack.length());
+        writer.append("small", 0, 0, TestBuffers.filled(100, 1));
+        // larger than a mapped window, so it gets one of its own
+        int large = (int) SessionPack.MappedWriter.WINDOW_BYTES + 10;
+        writer.append("large", 1, 0, TestBuffers.filled(large, 2));
+        writer.append("after", 2, 0, TestBuffers.filled(50, 3), TestBuffers.filled(50, 4));
+        long bytes = writer.bytesWritten();
+        writer.close();
+
+        assertTrue(mPack.length() > bytes && mPack.length() < bytes + 1024);
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals(3, reader.frameCount());
+            assertEquals(large, reader.entry(1).length);
+            ByteBuffer after = reader.readFrame(2);
+            assertEquals(3, after.get(49));
+            assertEquals(4, after.get(50));
+            assertEquals(2, reader.readFrame(1).get(large - 1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void failedWriteDoesNotShiftTheNextFrame() throws IOException {
+        SessionPack.Writer writer = new SessionPack.Writer(mPack) {
+            private boolean mFailed;
+
+            @Override
+            void gatherWrite(ByteBuffer[] data) throws IOException {
+                if (!mFailed && data.length > 2) {
+                    // the disk fills up after the frame record and the first plane
+                    mFailed = true;
+                    mChannel.write(data[0]);
+                    mChannel.write(data[1]);
+                    throw new IOException("no space left on device");
+                }
+                super.gatherWrite(data);
+            }
+        };
+        writer.append("first", 0, 0, TestBuffers.filled(100, 1));
+        try {
+            writer.append("failed", 1, 0, TestBuffers.filled(60, 2), TestBuffers.filled(40, 3));
+            fail("the write should have failed");
+        } catch (IOException expected) {
+        }
+        writer.append("second", 2, 0, TestBuffers.filled(100, 4));
+        long first = SessionPack.recordBytes("first") + 100;
+        assertEquals(SessionPack.HEADER_BYTES + first + SessionPack.recordBytes("second") + 100,
+                writer.bytesWritten());
+        writer.close();
+
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals(2, reader.frameCount());
+            assertEquals(SessionPack.HEADER_BYTES + first + SessionPack.recordBytes("second"),
+                    reader.entry(1).offset);
+            ByteBuffer second = reader.readFrame(1);
+            assertEquals(100, second.remaining());
+            while (second.hasRemaining()) {
+                assertEquals(4, second.get());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unclosedPackHasNoIndex() throws IOException {
+        SessionPack.Writer writer = new SessionPack.Writer(mPack);
+        writer.append("frame", 0, 0, TestBuffers.filled(100, 1));
+        new SessionPack.Reader(mPack);
+    }
+
+    @Test
+    public void cutOffPackIsRecoveredUpToTheLastSavedShot() throws IOException {
+        SessionPack.Writer writer = new SessionPack.MappedWriter(mPack, 1024 * 1024);
+        writer.append("shot0", 0, 0, TestBuffers.filled(100, 1));
+        writer.append("shot2", 2, 0, TestBuffers.filled(100, 3));
+        writer.append("shot1", 1, 0, TestBuffers.filled(60, 2), TestBuffers.filled(40, 2));
+        writer.sync();
+        // the app dies before the pack is closed; shot 2 wasn't saved according to the journal
+
+        assertEquals(2, SessionPack.recover(mPack, 1));
+        assertTrue(mPack.length() < 1024);
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals(2, reader.frameCount());
+            assertEquals(-1, reader.indexOf("shot2"));
+            ByteBuffer shot1 = reader.readFrame(reader.indexOf("shot1"));
+            assertEquals(100, shot1.remaining());
+            assertEquals(2, shot1.get(99));
+            assertEquals(0, reader.entry(reader.indexOf("shot0")).shot);
+        } finally {
+            reader.close();
+        }
+        // recovering it again leaves it alone
+        assertEquals(2, SessionPack.recover(mPack, 5));
+    }
+
+    @Test
+    public void tornFrameIsLeftOutOfTheRecoveredIndex() throws IOException {
+        SessionPack.Writer writer = new SessionPack.Writer(mPack);
+        writer.append("shot0", 0, 0, TestBuffers.filled(100, 1));
+        writer.append("shot1", 1, 0, TestBuffers.filled(100, 2));
+        RandomAccessFile raf = new RandomAccessFile(mPack, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        assertEquals(1, SessionPack.recover(mPack, 1));
+        SessionPack.Reader reader = new SessionPack.Reader(mPack);
+        try {
+            assertEquals("shot0", reader.entry(0).name);
+            assertEquals(100, reader.readFrame(0).remaining());
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Plain JVM tests for {@link StillRequestCache}, with the keys standing in for the requests.
+ */
+public class StillRequestCacheTest {
+
+    private final List<StillRequestCache.Key> mBuilt = new ArrayList<>();
+    private StillRequestCache<String> mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new StillRequestCache<>(new StillRequestCache.Factory<String>() {
+            @Override
+            public String create(StillRequestCache.Key key) {
+                mBuilt.add(key);
+                return "request " + mBuilt.size();
+            }
+        });
+    }
+
+    @Test
+    public void equalSettingsShareOneRequest() throws Exception {
+        String first = mCache.get(key(0.05f, 90));
+        assertSame(first, mCache.get(key(0.05f, 90)));
+        assertEquals(1, mBuilt.size());
+    }
+
+    @Test
+    public void everySettingIsPartOfTheKey() throws Exception {
+        StillRequestCache.Key key = key(0.05f, 90);
+        assertNotEquals(key, key(0.0125f, 90));
+        assertNotEquals(key, key(0.05f, 270));
+        assertNotEquals(key, new StillRequestCache.Key(0.05f, 800, (byte) 100, 90));
+        assertNotEquals(key, new StillRequestCache.Key(0.05f, 400, (byte) 95, 90));
+        assertEquals(key.hashCode(), key(0.05f, 90).hashCode());
+
+        mCache.get(key);
+        mCache.get(key(0.05f, 270));
+        assertEquals(2, mBuilt.size());
+    }
+
+    @Test
+    public void primeRebuildsTheLadder() throws Exception {
+        mCache.get(key(0.2f, 0));
+        mCache.prime(Arrays.asList(key(0.0125f, 0), key(0.05f, 0)));
+        assertEquals(3, mBuilt.size());
+
+        // primed requests are hits, the dropped one is built again
+        mCache.get(key(0.0125f, 0));
+        mCache.get(key(0.05f, 0));
+        assertEquals(3, mBuilt.size());
+        assertEquals("request 4", mCache.get(key(0.2f, 0)));
+
+        mCache.clear();
+        mCache.get(key(0.05f, 0));
+        assertEquals(5, mBuilt.size());
+    }
+
+    private static StillRequestCache.Key key(float exposureTime, int orientation) {
+        return new StillRequestCache.Key(exposureTime, 400, (byte) 100, orientation);
+    }
+
+}
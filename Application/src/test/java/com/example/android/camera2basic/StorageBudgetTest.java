@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plain JVM tests for {@link StorageBudget}.
+ */
+public class StorageBudgetTest {
+
+    private long mAvailable;
+
+    private final StorageBudget.Storage mStorage = new StorageBudget.Storage() {
+        @Override
+        public long availableBytes() {
+            return mAvailable;
+        }
+    };
+
+    @Test
+    public void admitsOnlyTheShotsThatFitAboveTheReserve() {
+        mAvailable = 1100;
+        StorageBudget budget = new StorageBudget(mStorage, 100, 100);
+        assertEquals(10, budget.shotsLeft());
+        assertEquals(5, budget.admit(5));
+        assertEquals(10, budget.admit(50));
+
+        mAvailable = 50;
+        assertEquals(0, budget.shotsLeft());
+    }
+
+    @Test
+    public void estimateFollowsTheSavedShots() {
+        mAvailable = 10000;
+        StorageBudget budget = new StorageBudget(mStorage, 0, 1000);
+        assertEquals(10, budget.shotsLeft());
+
+        // the first saved shot replaces the worst-case estimate
+        budget.onShotSaved(100);
+        assertEquals(100, budget.shotBytes());
+        assertEquals(100, budget.shotsLeft());
+
+        budget.onShotSaved(600);
+        assertEquals(200, budget.shotBytes());
+        assertEquals(50, budget.shotsLeft());
+    }
+
+}
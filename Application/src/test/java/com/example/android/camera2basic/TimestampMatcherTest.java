@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plain JVM tests for {@link TimestampMatcher}, pairing RAW images with capture results.
+ */
+public class TimestampMatcherTest {
+
+    private final List<String> mMatched = new ArrayList<>();
+    private final List<String> mDropped = new ArrayList<>();
+    private TimestampMatcher<String, String> mMatcher;
+
+    @Before
+    public void setUp() {
+        mMatcher = new TimestampMatcher<>(new TimestampMatcher.Listener<String, String>() {
+            @Override
+            public void onMatched(long timestampNs, String raw, String result) {
+                mMatched.add(timestampNs + ":" + raw + "+" + result);
+            }
+
+            @Override
+            public void onFirstDropped(long timestampNs, String raw) {
+                mDropped.add(timestampNs + ":" + raw);
+            }
+        });
+    }
+
+    @Test
+    public void pairsInEitherOrder() {
+        mMatcher.offerFirst(100, "raw0");
+        mMatcher.offerSecond(100, "result0");
+        mMatcher.offerSecond(200, "result1");
+        assertEquals(1, mMatcher.unmatched());
+        mMatcher.offerFirst(200, "raw1");
+
+        assertEquals("[100:raw0+result0, 200:raw1+result1]", mMatched.toString());
+        assertEquals(0, mMatcher.unmatched());
+    }
+
+    @Test
+    public void resultOfADroppedRawImageIsEvicted() {
+        // the RAW image of 100 was dropped, so its result waits in vain
+        mMatcher.offerSecond(100, "result0");
+        mMatcher.offerSecond(200, "result1");
+        mMatcher.offerFirst(200, "raw1");
+
+        assertEquals("[200:raw1+result1]", mMatched.toString());
+        assertEquals(0, mMatcher.unmatched());
+    }
+
+    @Test
+    public void rawImageWithoutAResultIsDropped() {
+        // the capture of 100 failed after its image was captured
+        mMatcher.offerFirst(100, "raw0");
+        mMatcher.offerFirst(200, "raw1");
+        mMatcher.offerSecond(200, "result1");
+
+        assertEquals("[100:raw0]", mDropped.toString());
+        assertEquals("[200:raw1+result1]", mMatched.toString());
+        assertEquals(0, mMatcher.unmatched());
+    }
+
+    @Test
+    public void clearReturnsTheUnmatchedRawImages() {
+        mMatcher.offerFirst(100, "raw0");
+        mMatcher.offerSecond(50, "result");
+
+        List<String> raws = new ArrayList<>();
+        for (String raw : mMatcher.clear()) {
+            raws.add(raw);
+        }
+        assertEquals("[raw0]", raws.toString());
+        assertEquals(0, mMatcher.unmatched());
+        assertEquals("[]", mDropped.toString());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the plane dump format written by {@link YuvSaver}.
+ */
+public class YuvSaverTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private int mShotsSaved;
+    private boolean mClosed;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+    }
+
+    @Test
+    public void writesHeaderAndPlanes() throws IOException {
+        int width = 8;
+        int height = 4;
+        // NV21 style chroma: interleaved, pixel stride 2, last pixel of the row left out
+        ByteBuffer y = TestBuffers.filled(width * height, 1);
+        ByteBuffer u = TestBuffers.filled(width * height / 2 - 1, 2);
+        ByteBuffer v = TestBuffers.filled(width * height / 2 - 1, 3);
+        LightstageShot shot = new LightstageShot(mDir, "yuv", 0, 1, 1, ".yuv", null,
+                GroupCommitter.NO_SYNC);
+        new YuvSaver(new AutoCloseable() {
+            @Override
+            public void close() {
+                mClosed = true;
+            }
+        }, width, height, new ByteBuffer[]{y, u, v}, new int[]{width, width, width},
+                new int[]{1, 2, 2}, shot.frames[0], new CaptureTimings(CaptureTimings.SYSTEM_CLOCK),
+                new ImageSaver.Callback() {
+                    @Override
+                    public void onSaveFailed(LightstageShot.Frame frame, IOException e) {
+                    }
+
+                    @Override
+                    public void onShotSaved(LightstageShot shot) {
+                        mShotsSaved++;
+                    }
+                }).run();
+
+        File file = shot.frames[0].file;
+        assertTrue(file.getName().endsWith(".yuv"));
+        assertEquals(YuvSaver.headerBytes(3) + width * height + 2 * (width * height / 2 - 1),
+                file.length());
+        assertTrue(mClosed);
+        assertEquals(1, mShotsSaved);
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(YuvSaver.MAGIC, in.readInt());
+            assertEquals(YuvSaver.VERSION, in.readInt());
+            assertEquals(width, in.readInt());
+            assertEquals(height, in.readInt());
+            assertEquals(3, in.readInt());
+            int[] pixelStrides = {1, 2, 2};
+            int[] lengths = {width * height, width * height / 2 - 1, width * height / 2 - 1};
+            for (int i = 0; i < 3; i++) {
+                assertEquals(width, in.readInt());
+                assertEquals(pixelStrides[i], in.readInt());
+                assertEquals(lengths[i], in.readInt());
+            }
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < lengths[i]; j++) {
+                    assertEquals(i + 1, in.readByte());
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
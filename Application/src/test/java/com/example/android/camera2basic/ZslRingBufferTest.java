@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plain JVM tests for {@link ZslRingBuffer}, with frames that are their own timestamps.
+ */
+public class ZslRingBufferTest {
+
+    private final List<Long> mReleased = new ArrayList<>();
+    private final List<Long> mPicked = new ArrayList<>();
+    private ZslRingBuffer<Long> mBuffer;
+
+    private final ZslRingBuffer.Callback<Long> mCallback = new ZslRingBuffer.Callback<Long>() {
+        @Override
+        public void onFramePicked(Long frame) {
+            mPicked.add(frame);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mBuffer = new ZslRingBuffer<>(new ZslRingBuffer.Frames<Long>() {
+            @Override
+            public long timestampOf(Long frame) {
+                return frame;
+            }
+
+            @Override
+            public void release(Long frame) {
+                mReleased.add(frame);
+            }
+        }, 3);
+    }
+
+    @Test
+    public void oldestFramesAreReleasedBeyondTheDepth() {
+        for (long t = 1; t <= 5; t++) {
+            mBuffer.offer(t);
+        }
+        assertEquals("[1, 2]", mReleased.toString());
+
+        mBuffer.clear();
+        assertEquals("[1, 2, 3, 4, 5]", mReleased.toString());
+    }
+
+    @Test
+    public void triggerPicksTheFirstFrameNotBeforeIt() {
+        mBuffer.offer(10L);
+        mBuffer.offer(20L);
+        mBuffer.offer(30L);
+
+        mBuffer.trigger(15, mCallback);
+        assertEquals("[20]", mPicked.toString());
+        // the earlier frame can't match a later trigger anymore
+        assertEquals("[10]", mReleased.toString());
+
+        mBuffer.trigger(30, mCallback);
+        assertEquals("[20, 30]", mPicked.toString());
+        assertEquals(0, mBuffer.pendingTriggers());
+    }
+
+    @Test
+    public void pendingTriggerWaitsForALaterFrame() {
+        mBuffer.offer(10L);
+        mBuffer.trigger(25, mCallback);
+        assertEquals(1, mBuffer.pendingTriggers());
+        assertEquals("[10]", mReleased.toString());
+
+        mBuffer.offer(20L);
+        assertEquals("[]", mPicked.toString());
+        mBuffer.offer(25L);
+        assertEquals("[25]", mPicked.toString());
+        assertEquals("[10, 20]", mReleased.toString());
+    }
+
+    @Test
+    public void triggersAreMatchedInOrder() {
+        mBuffer.trigger(40, mCallback);
+        // an earlier time doesn't overtake the pending trigger
+        mBuffer.trigger(20, mCallback);
+        mBuffer.offer(30L);
+        mBuffer.offer(40L);
+        mBuffer.offer(50L);
+
+        assertEquals("[40, 50]", mPicked.toString());
+        assertEquals("[30]", mReleased.toString());
+    }
+
+}
@@ -6,7 +6,7 @@ import android.util.Log
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
 /**
  * Saves a JPEG [Image] into the specified [File].
@@ -24,13 +24,14 @@ internal class ImageSaver(
 ) : Runnable {
 
     override fun run() {
+        // The plane is written straight from its direct buffer, without a heap copy
         val buffer = image.planes[0].buffer
-        val bytes = ByteArray(buffer.remaining())
-        buffer.get(bytes)
-        var output: FileOutputStream? = null
+        var output: FileChannel? = null
         try {
-            output = FileOutputStream(file).apply {
-                write(bytes)
+            output = FileOutputStream(file).channel.apply {
+                while (buffer.hasRemaining()) {
+                    write(buffer)
+                }
             }
         } catch (e: IOException) {
             Log.e(TAG, e.toString())